@@ -67,3 +67,9 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
@@ -25,6 +25,12 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallFork		15
+#define syscallMunmap		16
+#define syscallShmat		17
+#define syscallShmdt		18
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +115,17 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * has a new unique process ID, a copy of the parent's memory, and shares the
+ * parent's open file descriptors (including their file offsets). Both
+ * processes continue from the return from fork().
+ *
+ * fork() returns the child's process ID in the parent, which can be passed to
+ * join(), and 0 in the child. On error, returns -1 and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -215,18 +232,48 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map the first length bytes of the file referenced by fileDescriptor into
+ * unused pages of memory. Pages are read from the file when they are first
+ * touched, and pages that have been written to are written back to the file
+ * when they are evicted or the map is removed. Bytes of the map past the end
+ * of the file read as zero, and extend the file when written back.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * The map keeps its own reference to the file, so fileDescriptor may be
+ * closed while the map is in use. Maps are not inherited by fork().
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns the address of the map on success, or -1 if an error occurred.
  */
-int mmap(int fileDescriptor, char *address);
+char *mmap(int fileDescriptor, int length);
+
+/**
+ * Remove the map starting at address, writing back any pages that have been
+ * written to. Maps that are still in place when a process exits are removed
+ * the same way.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
+/**
+ * Attach to the shared memory segment called name, creating a segment of
+ * size bytes if no process is attached to one with that name. The segment
+ * is zero-filled when created, and is mapped at the same address in every
+ * process attached to it, so pointers into it may be shared. Futexes in the
+ * segment can be used to wait for and wake other attached processes.
+ *
+ * A forked child is attached to its parent's segments. A segment is
+ * destroyed when the last process attached to it detaches or exits.
+ *
+ * Returns the address of the segment on success, or -1 if an error occurred.
+ */
+char *shmat(char *name, int size);
+
+/**
+ * Detach from the shared memory segment at address.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -257,6 +304,35 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SYNCHRONIZATION SYSCALLS: futex_wait, futex_wake
+ * A futex is an aligned integer in user memory. User-level locks update the
+ * futex word with ordinary loads and stores and only call into the kernel
+ * when they need to sleep or to wake sleepers, so an uncontended lock never
+ * traps.
+ */
+
+/**
+ * Atomically check that the integer at addr still holds expected and, if so,
+ * put the calling thread to sleep until another thread calls futex_wake() on
+ * the same address.
+ *
+ * A process has a single thread, so only a futex in a shared memory segment
+ * (see shmat()) can be woken by anyone else. futex_wait() on any other
+ * address fails instead of sleeping forever.
+ *
+ * Returns 0 after being woken, or -1 if addr is invalid, misaligned or not in
+ * a shared memory segment, or if *addr did not hold expected (in which case
+ * the caller should re-check its lock word and retry).
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up at most count threads sleeping in futex_wait() on addr.
+ *
+ * Returns the number of threads woken, or -1 if an error occurred.
+ */
+int futex_wake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
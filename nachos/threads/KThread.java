@@ -330,7 +330,14 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (idleTask != null)
+			idleTask.run();
+
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -339,6 +346,18 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Set a task for the idle thread to run each time it is scheduled,
+     * before it yields again. The task runs whenever no other thread is
+     * ready, so it should do a small amount of work at a time, and it must
+     * never block, since the idle thread may not sleep.
+     *
+     * @param	task	the task to run, or <tt>null</tt> for none.
+     */
+    public static void setIdleTask(Runnable task) {
+	idleTask = task;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -487,4 +506,5 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;	
+    private static Runnable idleTask = null;
 }
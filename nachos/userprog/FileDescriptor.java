@@ -0,0 +1,213 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An entry in a process's file table. A file descriptor refers to an
+ * <tt>OpenFile</tt> and keeps its own file offset, so reads and writes on
+ * different descriptors for the same file do not disturb each other.
+ *
+ * <p>
+ * Files on disk also get a read-ahead buffer. When a read continues where
+ * the previous one on this descriptor ended, the descriptor fetches the
+ * next <tt>readAheadSize</tt> bytes of the file with a single file system
+ * call, so small sequential reads pay the file system's access delay once
+ * per chunk rather than once per syscall. Streams (such as the console)
+ * have no offset and are read and written directly.
+ *
+ * <p>
+ * The read-ahead buffer only sees writes made through this descriptor,
+ * including write-backs of pages of a memory-mapped file made with
+ * <tt>writeAt()</tt>; writes to the same file through another descriptor
+ * are not reflected in data that has already been prefetched.
+ */
+public class FileDescriptor {
+
+	//the file or stream this descriptor refers to
+	private OpenFile _file;
+
+	//true if the file is a stream with no length or file offset
+	private boolean _isStream;
+
+	//the file offset of the next read or write
+	private int _position;
+
+	//the file offset at which the last read on this descriptor ended
+	private int _lastReadEnd;
+
+	//prefetched file contents, allocated on first sequential read
+	private byte[] _readAheadBuffer;
+
+	//file offset of the first byte in the read-ahead buffer
+	private int _readAheadStart;
+
+	//number of valid bytes in the read-ahead buffer
+	private int _readAheadLength;
+
+	//number of file table slots (across processes) referring to this descriptor
+	private int _refCount = 1;
+
+	/** The number of bytes prefetched by a sequential read. */
+	public static final int readAheadSize = 8 * Processor.pageSize;
+
+    /**
+     * Allocate a new file descriptor for an open file or stream, with
+     * its file offset at the start of the file.
+     *
+     * @param	file	the file or stream the descriptor refers to.
+     */
+    public FileDescriptor(OpenFile file) {
+    	Lib.assertTrue(file != null);
+
+    	this._file = file;
+
+    	this._isStream = file.length() < 0;
+    }
+
+    /**
+     * Get the file or stream this descriptor refers to.
+     */
+    public OpenFile getFile() {
+    	return this._file;
+    }
+
+    /**
+     * Read up to <tt>length</tt> bytes at this descriptor's file offset and
+     * advance the offset past them.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the number of bytes to read.
+     * @return	the number of bytes read, or -1 on failure.
+     */
+    public int read(byte[] buf, int offset, int length) {
+    	if(this._isStream) return this._file.read(buf, offset, length);
+
+    	boolean sequential = (this._position == this._lastReadEnd);
+
+    	//first serve what has already been prefetched
+    	int amount = copyFromReadAhead(buf, offset, length);
+
+    	int remaining = length - amount;
+
+    	if(remaining > 0)
+    	{
+    		int bytesRead;
+
+    		if(sequential && remaining < readAheadSize)
+    		{
+    			//prefetch the next chunk with a single file system call
+    			if(this._readAheadBuffer == null) this._readAheadBuffer = new byte[readAheadSize];
+
+    			bytesRead = this._file.read(this._position, this._readAheadBuffer, 0, readAheadSize);
+
+    			this._readAheadStart = this._position;
+
+    			this._readAheadLength = Math.max(bytesRead, 0);
+
+    			if(bytesRead >= 0) bytesRead = copyFromReadAhead(buf, offset + amount, remaining);
+    		}
+    		else
+    		{
+    			//random access, or a request too big to be worth buffering
+    			bytesRead = this._file.read(this._position, buf, offset + amount, remaining);
+
+    			if(bytesRead > 0) this._position += bytesRead;
+    		}
+
+    		if(bytesRead < 0 && amount == 0) return -1;
+
+    		if(bytesRead > 0) amount += bytesRead;
+    	}
+
+    	this._lastReadEnd = this._position;
+
+    	return amount;
+    }
+
+    /**
+     * Copy bytes at the current file offset out of the read-ahead buffer,
+     * advancing the offset past them.
+     *
+     * @return	the number of bytes copied.
+     */
+    private int copyFromReadAhead(byte[] buf, int offset, int length) {
+    	int start = this._position - this._readAheadStart;
+
+    	if(start < 0 || start >= this._readAheadLength) return 0;
+
+    	int amount = Math.min(length, this._readAheadLength - start);
+
+    	System.arraycopy(this._readAheadBuffer, start, buf, offset, amount);
+
+    	this._position += amount;
+
+    	return amount;
+    }
+
+    /**
+     * Write up to <tt>length</tt> bytes at this descriptor's file offset and
+     * advance the offset past them.
+     *
+     * @param	buf	the buffer to get the bytes from.
+     * @param	offset	the offset in the buffer to start getting.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written, or -1 on failure.
+     */
+    public int write(byte[] buf, int offset, int length) {
+    	if(this._isStream) return this._file.write(buf, offset, length);
+
+    	int bytesWritten = writeAt(this._position, buf, offset, length);
+
+    	if(bytesWritten > 0) this._position += bytesWritten;
+
+    	return bytesWritten;
+    }
+
+    /**
+     * Write up to <tt>length</tt> bytes at the given file offset, leaving
+     * this descriptor's file offset unchanged. Used to write back the pages
+     * of a memory-mapped file.
+     *
+     * @param	position	the file offset at which to start writing.
+     * @param	buf	the buffer to get the bytes from.
+     * @param	offset	the offset in the buffer to start getting.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written, or -1 on failure.
+     */
+    public int writeAt(int position, byte[] buf, int offset, int length) {
+    	Lib.assertTrue(!this._isStream);
+
+    	//drop prefetched data the write makes stale
+    	if(position < this._readAheadStart + this._readAheadLength &&
+    			position + length > this._readAheadStart)
+    	{
+    		this._readAheadLength = 0;
+    	}
+
+    	return this._file.write(position, buf, offset, length);
+    }
+
+    /**
+     * Add a reference to this descriptor from another file table slot, as
+     * when a forked process inherits it. The descriptor, including its file
+     * offset, is then shared until every slot has closed it.
+     */
+    public void share() {
+    	this._refCount++;
+    }
+
+    /**
+     * Drop a reference to this descriptor. When the last reference is
+     * dropped, close the underlying file and release the read-ahead buffer.
+     */
+    public void close() {
+    	if(--this._refCount > 0) return;
+
+    	this._file.close();
+
+    	this._readAheadBuffer = null;
+
+    	this._readAheadLength = 0;
+    }
+}
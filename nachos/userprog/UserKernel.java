@@ -11,20 +11,41 @@ import nachos.vm.*; //TODO: remove once static method calls removed
  */
 public class UserKernel extends ThreadedKernel {
 	
-	private List<PageFrame> freeMemory;
+	//one bit per physical page frame; a set bit means the frame is free.
+	//protected by disabling interrupts
+	private long[] _freeFrameBitmap;
 	
-	//a lock protecting access to free memory
-	private nachos.threads.Lock freeMemLock;
+	//number of set bits in the free frame bitmap
+	private int _numFreeFrames;
 	
+	//word of the bitmap at which to start searching for a free frame
+	private int _freeFrameHint;
 	
-	//pages (pyhiscal page numbers )in use and cannot be 
-	//evicted (e.g. page is being loaded, read/written, etc)
-	private HashSet<Integer> _pagesInUse;
+	//free frames known to hold only zeros, a subset of the free frame
+	//bitmap; filled in by the idle thread
+	private long[] _zeroedFrameBitmap;
+	
+	//number of set bits in the zeroed frame bitmap
+	private int _numZeroedFrames;
+	
+	//the idle thread stops zeroing frames once this many are zeroed
+	private int _zeroedFramePoolSize;
+	
+	//pin counts of physical pages; pages with a non-zero count are
+	//in use and cannot be evicted (e.g. page is being loaded, read/written, etc)
+	private int[] _pinCounts;
 	
 	//protects access to page table and list of pages in use
 	protected Lock _pageAccessLock;
 	
-	
+	//hashed table of futex wait queues, keyed by (process id, virtual address);
+	//see getFutexOwner()
+	private FutexBucket[] _futexBuckets;
+
+	//number of futex buckets; must be a power of two
+	private static final int NUM_FUTEX_BUCKETS = 64;
+
+
     /**
      * Allocate a new user kernel.
      */
@@ -45,126 +66,471 @@ public class UserKernel extends ThreadedKernel {
 		public void run() { exceptionHandler(); }
 	    });
 	
-	this._pagesInUse = new HashSet<Integer>();
-	
 	this._pageAccessLock = new nachos.threads.Lock();
 	
 	initializeFreeMemory();
 	
+	initializeFutexBuckets();
+	
+	//zero free frames when there is nothing else to do
+	KThread.setIdleTask(new Runnable() {
+		public void run() { zeroFreeFrame(); }
+	    });
+
     }
 
     /**
-     * Sets up globally accessible linked list of free physical memory
-     * for user processes to "claim" when they are initizlized.
+     * Sets up the hashed bucket table of futex wait queues.
+     */
+    private void initializeFutexBuckets()
+    {
+    	this._futexBuckets = new FutexBucket[NUM_FUTEX_BUCKETS];
+
+    	for(int i = 0; i < NUM_FUTEX_BUCKETS; i++)
+    	{
+    		this._futexBuckets[i] = new FutexBucket();
+    	}
+    }
+
+    /**
+     * Returns the futex bucket a (process id, virtual address) key hashes to.
+     */
+    private FutexBucket getFutexBucket(int processID, int vaddr)
+    {
+    	int hash = (processID * 0x9E3779B1) ^ (vaddr >>> 2);
+
+    	hash ^= (hash >>> 16);
+
+    	return this._futexBuckets[hash & (NUM_FUTEX_BUCKETS - 1)];
+    }
+
+    /**
+     * Returns the ID that identifies a futex word's address space: the ID
+     * of the process, unless the word is in memory shared with other
+     * processes at the same address, in which case it is the ID of the
+     * shared memory. This kernel has no shared memory, so every futex is
+     * private.
+     */
+    protected int getFutexOwner(UserProcess process, int vaddr)
+    {
+    	return process.getProcessID();
+    }
+
+    /**
+     * Puts the current thread to sleep on the futex identified by the given
+     * process and virtual address, but only if the word at that address still
+     * holds the expected value. The check and the sleep are atomic with respect
+     * to <tt>futexWake()</tt> on the same futex.
+     *
+     * @param process the process the address belongs to
+     * @param vaddr the (word aligned) virtual address of the futex word
+     * @param expected the value the caller expects the futex word to hold
+     * @return 0 if the thread slept and was woken, -1 if the address is
+     * invalid or not shared with another process, or the word did not hold
+     * the expected value
+     */
+    public int futexWait(UserProcess process, int vaddr, int expected)
+    {
+    	if(vaddr < 0 || (vaddr & 0x3) != 0) return -1;
+
+    	int owner = getFutexOwner(process, vaddr);
+
+    	//a process has a single thread, so only another process sharing the
+    	//word could wake this one; waiting on private memory would never return
+    	if(owner == process.getProcessID())
+    	{
+    		Lib.debug('f', "Futex wait on private memory (PID " + process.getProcessID() + 
+    				" VADDR " + vaddr + ")");
+
+    		return -1;
+    	}
+
+    	FutexBucket bucket = getFutexBucket(owner, vaddr);
+
+    	byte[] word = new byte[4];
+
+    	//enter critical section; wakers on this bucket are held off until
+    	//this thread is on the wait queue
+    	bucket.lock.acquire();
+
+    	if(process.readVirtualMemory(vaddr, word) != word.length ||
+    			Lib.bytesToInt(word, 0) != expected)
+    	{
+    		bucket.lock.release();
+
+    		return -1;
+    	}
+
+    	FutexQueue queue = bucket.find(owner, vaddr);
+
+    	if(queue == null)
+    	{
+    		queue = new FutexQueue(owner, vaddr);
+
+    		bucket.queues.add(queue);
+    	}
+
+    	queue.numWaiters++;
+
+    	Lib.debug('f', "Futex wait (PID " + process.getProcessID() + " VADDR " + vaddr + ")");
+
+    	//atomically release the bucket and go to sleep
+    	boolean intStatus = Machine.interrupt().disable();
+
+    	bucket.lock.release();
+
+    	queue.waitQueue.waitForAccess(KThread.currentThread());
+
+    	KThread.sleep();
+
+    	Machine.interrupt().restore(intStatus);
+
+    	return 0;
+    }
+
+    /**
+     * Wakes at most <tt>count</tt> threads sleeping on the futex identified
+     * by the given process and virtual address.
+     *
+     * @param process the process the address belongs to
+     * @param vaddr the virtual address of the futex word
+     * @param count the maximum number of threads to wake
+     * @return the number of threads woken, or -1 if the arguments are invalid
+     */
+    public int futexWake(UserProcess process, int vaddr, int count)
+    {
+    	if(vaddr < 0 || (vaddr & 0x3) != 0 || count < 0) return -1;
+
+    	int owner = getFutexOwner(process, vaddr);
+
+    	FutexBucket bucket = getFutexBucket(owner, vaddr);
+
+    	int numWoken = 0;
+
+    	bucket.lock.acquire();
+
+    	FutexQueue queue = bucket.find(owner, vaddr);
+
+    	if(queue != null)
+    	{
+    		boolean intStatus = Machine.interrupt().disable();
+
+    		KThread thread;
+
+    		while(numWoken < count && (thread = queue.waitQueue.nextThread()) != null)
+    		{
+    			thread.ready();
+
+    			queue.numWaiters--;
+
+    			numWoken++;
+    		}
+
+    		Machine.interrupt().restore(intStatus);
+
+    		//drop the queue once nobody is waiting on it
+    		if(queue.numWaiters == 0) bucket.queues.remove(queue);
+    	}
+
+    	bucket.lock.release();
+
+    	Lib.debug('f', "Futex wake (PID " + process.getProcessID() + " VADDR " + vaddr +
+    			") woke " + numWoken);
+
+    	return numWoken;
+    }
+
+    /**
+     * Sets up the globally accessible bitmap of free physical memory
+     * for user processes to "claim" when they are initizlized, along
+     * with the per-frame pin counts.
      */
     private void initializeFreeMemory()
     {
-    	if(freeMemory != null) return;
+    	if(this._freeFrameBitmap != null) return;
+    	
+    	int numPhysPages = Machine.processor().getNumPhysPages();
+    	
+    	this._freeFrameBitmap = new long[(numPhysPages + 63) >>> 6];
+    	
+    	this._zeroedFrameBitmap = new long[this._freeFrameBitmap.length];
+    	
+    	this._zeroedFramePoolSize = Config.getInteger("UserKernel.zeroedFramePool", numPhysPages);
     	
-    	int pageSize = Machine.processor().pageSize;   	
+    	this._pinCounts = new int[numPhysPages];
     	
-    	byte [] mainMemory = Machine.processor().getMemory();
+    	//mark every frame as free
+    	for(int ppn = 0; ppn < numPhysPages; ppn++)
+    	{
+    		this._freeFrameBitmap[ppn >>> 6] |= 1L << (ppn & 63);
+    	}
+    	
+    	this._numFreeFrames = numPhysPages;
+    	
+    	this._freeFrameHint = 0;
+    }
     
-    	this.freeMemory = new LinkedList<PageFrame>();
+    /**
+     * Finds the lowest numbered free frame that is zeroed, or not zeroed,
+     * starting the search at the hint word. Interrupts must be disabled.
+     * 
+     * @return the physical page number of the frame, or -1 if there is none
+     */
+    private int findFreeFrame(boolean zeroed)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
     	
-    	//set up concurrency protections
-    	this.freeMemLock = new Lock();   	
+    	int numWords = this._freeFrameBitmap.length;
     	
-    	for(int i = 0; i < mainMemory.length; i += pageSize)
+    	for(int i = 0; i < numWords; i++)
     	{
-    		PageFrame frame = new PageFrame();
+    		int wordIndex = this._freeFrameHint + i;
     		
-    		frame.startIndex = i;
+    		if(wordIndex >= numWords) wordIndex -= numWords;
     		
-    		frame.endIndex = i + pageSize - 1;
+    		long word = this._freeFrameBitmap[wordIndex] & 
+    				(zeroed ? this._zeroedFrameBitmap[wordIndex] : ~this._zeroedFrameBitmap[wordIndex]);
     		
-    		this.freeMemory.add(frame);
+    		if(word != 0) return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
     	}
+    	
+    	return -1;
     }
     
     /**
-     * Gets the next free memory page. This info is stored
-     * as indices of the main memory in the PageFrame class.
+     * Removes a free frame from the bitmap, preferring a zeroed frame if
+     * <tt>zeroed</tt> is set and a frame that isn't otherwise, so that the
+     * pool of zeroed frames is kept for the pages that need it. Interrupts
+     * must be disabled.
      * 
-     * @return the next PageFrame containing free page of memory indices
+     * @return the physical page number of the frame, or -1 if none is free
      */
-    public PageFrame getNextFreeMemPage()
+    private int takeFreeFrame(boolean zeroed)
     {
-    	Lib.assertTrue(Machine.interrupt().disabled());   	    	
+    	Lib.assertTrue(Machine.interrupt().disabled());
     	
-    	PageFrame result = null;    	    	
-    	    	
-    	try
-    	{    	
-        	//enter critical section
-        	this.freeMemLock.acquire();
-        	
-    		if(!this.freeMemory.isEmpty())
+    	if(this._numFreeFrames == 0) return -1;
+    	
+    	int ppn = findFreeFrame(zeroed);
+    	
+    	if(ppn < 0) ppn = findFreeFrame(!zeroed);
+    	
+    	Lib.assertTrue(ppn >= 0, "Free frame count out of sync with bitmap");
+    	
+    	int wordIndex = ppn >>> 6;
+    	
+    	long mask = 1L << (ppn & 63);
+    	
+    	this._freeFrameBitmap[wordIndex] &= ~mask;
+    	
+    	this._numFreeFrames--;
+    	
+    	if((this._zeroedFrameBitmap[wordIndex] & mask) != 0)
+    	{
+    		this._zeroedFrameBitmap[wordIndex] &= ~mask;
+    		
+    		this._numZeroedFrames--;
+    	}
+    	
+    	this._freeFrameHint = wordIndex;
+    	
+    	return ppn;
+    }
+    
+    /**
+     * Zeroes one free frame that isn't zeroed yet, unless the pool of
+     * zeroed frames is already full. Called by the idle thread, so that
+     * pages that must start out zero-filled rarely have to be cleared on
+     * the fault path. Never blocks.
+     * 
+     * @return <tt>true</tt> if a frame was zeroed
+     */
+    public boolean zeroFreeFrame()
+    {
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	int ppn = (this._numZeroedFrames < this._zeroedFramePoolSize) ? findFreeFrame(false) : -1;
+    	
+    	if(ppn >= 0)
+    	{
+    		int paddr = ppn * Processor.pageSize;
+    		
+    		Arrays.fill(Machine.processor().getMemory(), paddr, paddr + Processor.pageSize, (byte) 0);
+    		
+    		this._zeroedFrameBitmap[ppn >>> 6] |= 1L << (ppn & 63);
+    		
+    		this._numZeroedFrames++;
+    	}
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return ppn >= 0;
+    }
+    
+    /**
+     * Allocates a free physical page frame whose contents are all zeros:
+     * one zeroed by the idle thread if there is one, and otherwise a free
+     * frame that is cleared now.
+     * 
+     * @return the physical page number of the frame, or -1 if there
+     * is no free memory
+     */
+    public int allocateZeroedFrame()
+    {
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	boolean zeroed = this._numZeroedFrames > 0;
+    	
+    	int ppn = takeFreeFrame(true);
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	if(ppn >= 0 && !zeroed)
+    	{
+    		int paddr = ppn * Processor.pageSize;
+    		
+    		Arrays.fill(Machine.processor().getMemory(), paddr, paddr + Processor.pageSize, (byte) 0);
+    	}
+    	
+    	return ppn;
+    }
+    
+    /**
+     * Allocates a free physical page frame.
+     * 
+     * @return the physical page number of the frame, or -1 if there
+     * is no free memory
+     */
+    public int allocateFrame()
+    {
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	int ppn = takeFreeFrame(false);
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return ppn;
+    }
+    
+    /**
+     * Allocates <tt>count</tt> free physical page frames at once. Either
+     * all of the frames are allocated or none are.
+     * 
+     * @param count the number of frames to allocate
+     * @param ppns receives the physical page numbers of the frames
+     * @return <tt>true</tt> if the frames were allocated
+     */
+    public boolean allocateFrames(int count, int[] ppns)
+    {
+    	Lib.assertTrue(count >= 0 && count <= ppns.length);
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	boolean success = this._numFreeFrames >= count;
+    	
+    	if(success)
+    	{
+    		for(int i = 0; i < count; i++)
     		{
-    			Lib.debug('s', "Accessing free memory in main mem");
-    			
-    			result = this.freeMemory.remove(0);
-    			
-        		Lib.assertTrue(result != null, "Memory result null");        		        	
+    			ppns[i] = takeFreeFrame(false);
     		}
     	}
-    	finally
-    	{    		
-        	//exit critical section
-        	this.freeMemLock.release();        	        	        
-        	
-        	return result;
-    	}
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return success;
     }
     
     /**
-     * Adds a memory node/page back to the pool of 
-     * free memory. Used when a process ends and is
-     * return its memory resources to the pool.
+     * Returns a physical page frame to the pool of free memory. Used 
+     * when a process ends and returns its memory resources to the pool.
      * 
-     * @param node
+     * @param ppn the physical page number of the frame
+     */
+    public void freeFrame(int ppn)
+    {
+    	Lib.assertTrue(ppn >= 0 && ppn < this._pinCounts.length);
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	int wordIndex = ppn >>> 6;
+    	
+    	long mask = 1L << (ppn & 63);
+    	
+    	Lib.assertTrue((this._freeFrameBitmap[wordIndex] & mask) == 0, 
+    			"Freeing a frame that is already free - PPN: " + ppn);
+    	
+    	this._freeFrameBitmap[wordIndex] |= mask;
+    	
+    	//the frame's contents are stale until the idle thread zeroes it again
+    	Lib.assertTrue((this._zeroedFrameBitmap[wordIndex] & mask) == 0);
+    	
+    	this._numFreeFrames++;
+    	
+    	if(wordIndex < this._freeFrameHint) this._freeFrameHint = wordIndex;
+    	
+    	Machine.interrupt().restore(intStatus);
+    }
+    
+    /**
+     * Returns <tt>count</tt> physical page frames to the pool of free memory.
      */
-    public void returnFreeMemPage(PageFrame frame)
+    public void freeFrames(int[] ppns, int count)
     {
-    	//enter critical section
-    	this.freeMemLock.acquire();
+    	for(int i = 0; i < count; i++)
+    	{
+    		freeFrame(ppns[i]);
+    	}
+    }
+    
+    public void setPageInUseAndLock(int ppn)
+    {    	    
+    	this._pageAccessLock.acquire();
     	
     	try
-    	{   	    		
-    		if(frame != null) this.freeMemory.add(frame);   	
+    	{
+    		setPageInUse(ppn);
     	}
     	finally
     	{
-        	//exit critical section
-        	this.freeMemLock.release();       	
-        }
+    		this._pageAccessLock.release();
+    	}    	
     }
     
     public void setPageNotInUseAndLock(int ppn)
     {    	    
-    	Lib.debug('u', "Acquiring page in use lock for ppn " + ppn);
-    	
     	this._pageAccessLock.acquire();
     	
-    	Lib.debug('u', "Acquiried page in use lock for ppn " + ppn);
-    	
     	try
     	{
-    		Lib.debug('u', "Setting page not in use (AND LOCK) - PPN: " + ppn);
-    		
     		setPageNotInUse(ppn);
-    		
-    		Lib.debug('u', "Successfuly set page not in use (AND LOCK) - PPN: " + ppn);
     	}
     	finally
     	{
-    		Lib.debug('u', "Releasing page in use lock for ppn " + ppn);
-    		
     		this._pageAccessLock.release();
-    		
-    		Lib.debug('u', "Released page in use lock for ppn " + ppn);
     	}    	
     }
+    
+    /**
+     * Unpins the first <tt>count</tt> physical pages in <tt>ppns</tt> under
+     * a single acquisition of the page access lock.
+     */
+    public void setPagesNotInUseAndLock(int[] ppns, int count)
+    {
+    	this._pageAccessLock.acquire();
+    	
+    	try
+    	{
+    		for(int i = 0; i < count; i++)
+    		{
+    			setPageNotInUse(ppns[i]);
+    		}
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    }
         
     /*
      * Sets a physical page as in use and cannot be evicted.
@@ -173,11 +539,7 @@ public class UserKernel extends ThreadedKernel {
     {
     	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
     	
-    	Lib.debug('u', "Setting page in use - PPN: " + ppn);
-
-    	this._pagesInUse.add(ppn);	
-    	
-    	printPagesInUse('u');
+    	this._pinCounts[ppn]++;
     }
     
     /*
@@ -187,41 +549,44 @@ public class UserKernel extends ThreadedKernel {
     {
     	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
     	
-    	Lib.debug('u', "Setting page not in use - PPN: " + ppn);    	    	
+    	Lib.assertTrue(this._pinCounts[ppn] > 0, "Unpinning a page that is not pinned - PPN: " + ppn);
     	
-    	this._pagesInUse.remove(ppn);
-    	
-    	printPagesInUse('u');
+    	this._pinCounts[ppn]--;
     }
     
     /*
      *  Returuns whether physical page is in use and cannot be evicted.
+     *  Code that can't wait for the page access lock, such as a context
+     *  switch, may call this with interrupts disabled instead.
      */
     public boolean pageInUse(int ppn)
     {
-    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());   	    	
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread() ||
+    			Machine.interrupt().disabled());
     	
-    	return this._pagesInUse.contains(ppn);
+    	return this._pinCounts[ppn] > 0;
     }
     
     public void printPagesInUse(char dbgFlag)
     {
+    	if(!Lib.test(dbgFlag)) return;
+    	
     	StringBuilder sb = new StringBuilder("Physical pages marked as in use: ");    	
     	
-    	for(Integer i : this._pagesInUse)
+    	for(int ppn = 0; ppn < this._pinCounts.length; ppn++)
     	{    		
-    		sb.append(i.toString() + ", ");
+    		if(this._pinCounts[ppn] > 0) sb.append(ppn).append(", ");
     	}
     	
     	Lib.debug(dbgFlag, sb.toString());
     }
     
     /*
-     * Returns length of free memory list
+     * Returns number of free physical page frames
      */
     public int freeMemoryAvailable()
     {
-    	return this.freeMemory.size();
+    	return this._numFreeFrames;
     }
     
     /**
@@ -307,11 +672,46 @@ public class UserKernel extends ThreadedKernel {
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
-    
-    public class PageFrame
+
+    /**
+     * A bucket of the futex hash table. Holds the wait queues of every
+     * futex whose key hashes to this bucket, protected by the bucket lock.
+     */
+    private class FutexBucket
     {
-    	public int startIndex;
-    	
-    	public int endIndex;
+    	public Lock lock = new Lock();
+
+    	public LinkedList<FutexQueue> queues = new LinkedList<FutexQueue>();
+
+    	public FutexQueue find(int processID, int vaddr)
+    	{
+    		for(FutexQueue queue : this.queues)
+    		{
+    			if(queue.processID == processID && queue.vaddr == vaddr) return queue;
+    		}
+
+    		return null;
+    	}
+    }
+
+    /**
+     * The threads waiting on a single futex.
+     */
+    private class FutexQueue
+    {
+    	public int processID;
+
+    	public int vaddr;
+
+    	public int numWaiters;
+
+    	public ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+    	public FutexQueue(int processID, int vaddr)
+    	{
+    		this.processID = processID;
+
+    		this.vaddr = vaddr;
+    	}
     }
 }
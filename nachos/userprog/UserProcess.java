@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import nachos.userprog.UserKernel.PageFrame;
 
 import java.io.EOFException;
 import java.nio.ByteBuffer;
@@ -31,14 +30,17 @@ public class UserProcess {
 	
 	private int numOpenFiles;
 	
-	private OpenFile[] openFiles;
+	private FileDescriptor[] openFiles;
 	
 	//represents the phsyical memory pages to which this process' virtual memory maps	
-	protected PageFrame[] physMemPages;	
+	protected int[] physMemPages;	
 
     /** The program being run by this process. */
     protected Coff coff;
 
+    /** The name of the file containing the program. */
+    protected String executableName;
+
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
@@ -47,6 +49,16 @@ public class UserProcess {
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
+    /**
+     * The most pages a single virtual memory transfer pins at once. Fewer
+     * are pinned on a machine with little physical memory; see
+     * <tt>getPinBatchSize()</tt>.
+     */
+    protected static final int maxPinnedPages = 8;
+    
+    //physical pages pinned by the virtual memory transfer in progress
+    private int[] pinnedPages = new int[maxPinnedPages];
+    
     private int initialPC, initialSP;
     private int argc, argv;
 	
@@ -70,6 +82,9 @@ public class UserProcess {
     
     private int exitStatus = -1;
     
+    //user registers a forked process starts with; null for an exec'd process
+    private int[] forkedRegisters;
+    
     //number of outstanding child processes to join on
     private int outstandingChildJoins;
 	
@@ -81,16 +96,16 @@ public class UserProcess {
     { 	    
     	currentProcess = this;
     	
-		openFiles = new OpenFile[MAX_OPEN_FILES];
+		openFiles = new FileDescriptor[MAX_OPEN_FILES];
 		
 		this.childProcesses = new HashMap<Integer, UserProcess>(10);
 		
 		//setup standard I/O to synchronzied console
 		Lib.assertTrue(MAX_OPEN_FILES >= 2);
 		
-		openFiles[0] = UserKernel.console.openForReading();
+		openFiles[0] = new FileDescriptor(UserKernel.console.openForReading());
 		
-		openFiles[1] = UserKernel.console.openForWriting();
+		openFiles[1] = new FileDescriptor(UserKernel.console.openForWriting());
 		
 		this.processID = cumProcessCount;
 		
@@ -111,16 +126,14 @@ public class UserProcess {
     	if(this.numPages == 0) return false;
     	
     	//create a "blank" virtual address space of size numPages
-    	this.physMemPages = new PageFrame[this.numPages];
+    	this.physMemPages = new int[this.numPages];
     	
-    	for(int i = 0; i < this.numPages; i++)
+    	if(!((UserKernel)Kernel.kernel).allocateFrames(this.numPages, this.physMemPages))
     	{
-    		PageFrame frame = ((UserKernel)Kernel.kernel).getNextFreeMemPage();
+    		this.physMemPages = null;
     		
-    		if(frame == null) return false;
-    		
-    		this.physMemPages[i] = frame;
-    	}   	    	
+    		return false;
+    	}
     	
     	initializeTranslations();
     	
@@ -137,14 +150,9 @@ public class UserProcess {
     	
     	Lib.debug('s', "Process deallocating memory...");
     	
-    	for(int i= 0; i < this.physMemPages.length; i++)
-    	{
-    		PageFrame frameToReturn = this.physMemPages[i];
-    		
-    		((UserKernel)Kernel.kernel).returnFreeMemPage(frameToReturn);
-    		
-    		this.physMemPages[i] = null;
-    	}
+    	((UserKernel)Kernel.kernel).freeFrames(this.physMemPages, this.physMemPages.length);
+    	
+    	this.physMemPages = null;
     }
 
     /**
@@ -157,7 +165,7 @@ public class UserProcess {
 		
 		for (int i=0; i<this.numPages; i++)
 		{
-			int physPageNum = this.physMemPages[i].endIndex / pageSize; 
+			int physPageNum = this.physMemPages[i]; 
 					
 			pageTable[i] = new TranslationEntry(i,physPageNum, true,false,false,false);
 		}	
@@ -295,48 +303,7 @@ public class UserProcess {
 	
 	Lib.debug('r', "Reading virtual memory (PID " + this.processID + ")");
 	
-	//boolean intStatus = Machine.interrupt().disable();
-	
-	byte[] memory = Machine.processor().getMemory();
-	
-	//get virtual page number
-	int vpn = vaddr / pageSize;		
-	
-	TranslationEntry entry = getTranslation(vpn, true);	
-	
-	if (entry == null) return 0;
-	
-	int addressOffset = vaddr % pageSize;
-	
-	int paddr = (entry.ppn*pageSize) + addressOffset;	
-
-	if (paddr < 0 || paddr >= memory.length)
-	    return 0;
-	
-	int amount = Math.min(length, memory.length-paddr);	
-	
-	UserKernel kernel = (UserKernel) Kernel.kernel;
-	
-	try
-	{
-		Lib.debug('r', "Reading from phys addr " + paddr);
-	
-		kernel.printPagesInUse('r');
-		
-		System.arraycopy(memory, paddr, data, offset, amount);
-	}
-	finally
-	{
-		((UserKernel)Kernel.kernel).setPageNotInUseAndLock(entry.ppn);	
-		
-		Lib.debug('r', "Reading complete from phys addr " + paddr);
-		
-		kernel.printPagesInUse('r');
-	}
-
-	//Machine.interrupt().restore(intStatus);
-	
-	return amount;
+	return transferVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -372,55 +339,140 @@ public class UserProcess {
 	
 	Lib.debug('w', "Writing virtual memory (PID " + this.processID + ")");
 	
-	UserKernel kernel = (UserKernel) Kernel.kernel;
-	
-	byte[] memory = Machine.processor().getMemory();
-	
-	//get virtual page number
-	int vpn = vaddr / pageSize;
-	
-	TranslationEntry entry = getTranslation(vpn, true);
-	
-	//check to ensure there's a valid virtual page and it's not read only
-	if(entry == null || entry.readOnly)
-	{
-		if(entry != null) kernel.setPageNotInUseAndLock(entry.ppn);		
-		
-		return 0;
-	}
-	
-	int addressOffset = vaddr % pageSize;
-	
-	int paddr = (entry.ppn*pageSize) + addressOffset;
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (paddr < 0 || paddr >= memory.length)
-	{
-		if(entry != null) kernel.setPageNotInUseAndLock(entry.ppn);		
-		
-		return 0;
-	}	    
-
-	int amount = Math.min(length, memory.length-paddr);		
-		
-	Lib.debug('w', "Writing to phys addr " + paddr);
-	
-	kernel.printPagesInUse('w');
-	
-	System.arraycopy(data, offset, memory, paddr, amount);
-
-	if(entry != null) kernel.setPageNotInUseAndLock(entry.ppn);			
-
-	Lib.debug('w', "Writing complete to phys addr " + paddr);
-	
-	kernel.printPagesInUse('w');
-	
-	return amount;
+	return transferVirtualMemory(vaddr, data, offset, length, true);
     }
     
+    /**
+     * Copies data between the specified array and this process's virtual
+     * memory, one page-sized segment at a time. The pages touched are pinned
+     * in batches of at most <tt>getPinBatchSize()</tt> so they cannot be evicted
+     * while being copied. The transfer stops at the first page that has no
+     * translation (or that is read-only, when writing).
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	data	the array to transfer to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	writing	<tt>true</tt> to copy from the array into virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+    		int length, boolean writing)
+    {
+    	if(vaddr < 0 || length <= 0) return 0;
+    	
+    	byte[] memory = Machine.processor().getMemory();
+    	
+    	int lastVPN = (int) (((long) vaddr + length - 1) / pageSize);
+    	
+    	int amount = 0;
+    	
+    	while(amount < length)
+    	{
+    		int firstVPN = (vaddr + amount) / pageSize;
+    		
+    		int numToPin = Math.min(lastVPN - firstVPN + 1, getPinBatchSize());
+    		
+    		int numPinned = pinVirtualPages(firstVPN, numToPin, writing);
+    		
+    		//copy one segment per pinned page
+    		for(int i = 0; i < numPinned; i++)
+    		{
+    			int pageOffset = (vaddr + amount) % pageSize;
+    			
+    			int segment = Math.min(length - amount, pageSize - pageOffset);
+    			
+    			int paddr = (this.pinnedPages[i]*pageSize) + pageOffset;
+    			
+    			if(writing)
+    				System.arraycopy(data, offset + amount, memory, paddr, segment);
+    			else
+    				System.arraycopy(memory, paddr, data, offset + amount, segment);
+    			
+    			amount += segment;
+    		}
+    		
+    		unpinPages(numPinned);
+    		
+    		//a page could not be translated; report the partial transfer
+    		if(numPinned < numToPin) break;
+    	}
+    	
+    	return amount;
+    }
+    
+    /**
+     * Returns the number of pages a virtual memory transfer pins at once:
+     * at most <tt>maxPinnedPages</tt>, and at most half of physical memory,
+     * so that the faults taken while a batch is pinned still find frames
+     * to evict.
+     */
+    protected int getPinBatchSize()
+    {
+    	return Math.max(1, Math.min(maxPinnedPages, Machine.processor().getNumPhysPages() / 2));
+    }
+    
+    /**
+     * Translates and pins <tt>numPages</tt> consecutive virtual pages starting
+     * at <tt>firstVPN</tt>, storing their physical page numbers in
+     * <tt>pinnedPages</tt>. Stops at the first page that has no translation,
+     * or that is read-only when <tt>writing</tt> is set. Pages are marked
+     * used (and dirty when writing) since the kernel accesses them directly.
+     *
+     * @return	the number of pages pinned.
+     */
+    protected int pinVirtualPages(int firstVPN, int numPages, boolean writing)
+    {
+    	Lib.assertTrue(numPages <= maxPinnedPages);
+    	
+    	for(int i = 0; i < numPages; i++)
+    	{
+    		TranslationEntry entry = getTranslation(firstVPN + i, true);
+    		
+    		if(entry == null) return i;
+    		
+    		if(writing && entry.readOnly)
+    		{
+    			((UserKernel)Kernel.kernel).setPageNotInUseAndLock(entry.ppn);
+    			
+    			//the page may only be shared until it is written
+    			if(!copyOnWrite(firstVPN + i)) return i;
+    			
+    			entry = getTranslation(firstVPN + i, true);
+    			
+    			if(entry == null) return i;
+    		}
+    		
+    		entry.used = true;
+    		
+    		if(writing) entry.dirty = true;
+    		
+    		this.pinnedPages[i] = entry.ppn;
+    	}
+    	
+    	return numPages;
+    }
+    
+    /**
+     * Unpins the first <tt>count</tt> pages pinned by <tt>pinVirtualPages()</tt>.
+     */
+    protected void unpinPages(int count)
+    {
+    	if(count > 0) ((UserKernel)Kernel.kernel).setPagesNotInUseAndLock(this.pinnedPages, count);
+    }
+    
+    /**
+     * Returns the translation for a virtual page, pinning its frame if
+     * <tt>nonEvictable</tt> is set. A pinned frame must be unpinned with
+     * <tt>setPageNotInUseAndLock()</tt> once the caller is done with it.
+     */
     protected TranslationEntry getTranslation(int vpn, boolean nonEvictable)
     {
-    	return getTranslation(vpn);
+    	TranslationEntry entry = getTranslation(vpn);
+    	
+    	if(entry != null && nonEvictable) ((UserKernel)Kernel.kernel).setPageInUseAndLock(entry.ppn);
+    	
+    	return entry;
     }
     
     protected TranslationEntry getTranslation(int vpn)
@@ -449,6 +501,8 @@ public class UserProcess {
 	    return false;
 	}
 
+	executableName = name;
+
 	try {
 	    coff = new Coff(executable);
 	}
@@ -592,6 +646,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked process resumes where its parent made the fork() call
+	if (forkedRegisters != null) {
+	    for (int i=0; i<processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkedRegisters[i]);
+
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -639,7 +701,7 @@ public class UserProcess {
     	{
     		if(openFiles[i] == null)
     		{
-    			openFiles[i] = fileToSet;
+    			openFiles[i] = new FileDescriptor(fileToSet);
     			
     			return i;
     		}
@@ -713,17 +775,17 @@ public class UserProcess {
     	//check if process already has the file open
     	for(int i = 0; i < MAX_OPEN_FILES; i++)
 		{
-			OpenFile file = openFiles[i];
+			FileDescriptor descriptor = openFiles[i];
 			
 			//if the file names match, return the file handle
-			if(file != null && file.getName().trim() == fileName.trim())
+			if(descriptor != null && descriptor.getFile().getName().trim() == fileName.trim())
 				return i;
 		}
     	//the file isn't open already
     	return -1;
     }
     
-    private OpenFile getOpenFile(int fileDescriptor)
+    private FileDescriptor getOpenFile(int fileDescriptor)
     {
     	if(fileDescriptor >= MAX_OPEN_FILES ||
     			fileDescriptor < 0) return null;
@@ -736,16 +798,13 @@ public class UserProcess {
     	//TODO: add constraint/check for max size?
     	if(size < 0) return -1;
     	
-    	byte[] bytes = new byte[size]; 
-    			
-        readVirtualMemory(bufferVirtualAddress, bytes);   	    	
-    	
         //get open file
-        OpenFile file = getOpenFile(fHandle);
+        FileDescriptor descriptor = getOpenFile(fHandle);
         
-        if(file == null) return -1;
+        if(descriptor == null) return -1;
         
-        return file.write(bytes, 0, size);
+        //write straight out of the pinned physical pages of the buffer
+        return transferFile(descriptor, bufferVirtualAddress, size, false);
     }
 
     private int handleClose(int fileDescriptor)
@@ -759,24 +818,110 @@ public class UserProcess {
     	
     	openFiles[fileDescriptor] = null;
     	
+    	numOpenFiles--;
+    	
     	return 0;    	
     }
     
     private int handleRead(int fileDescriptor, int bufferVAddr, int size)
     {
-    	if(size < 0 || fileDescriptor < 0 || 
+    	if(size < 0 || fileDescriptor < 0 || fileDescriptor >= MAX_OPEN_FILES ||
     			openFiles[fileDescriptor] == null) return -1;
     	
-    	OpenFile file = openFiles[fileDescriptor];
+    	FileDescriptor descriptor = openFiles[fileDescriptor];
+    	
+    	//read straight into the pinned physical pages of the buffer
+    	return transferFile(descriptor, bufferVAddr, size, true);
+    }
+    
+    /**
+     * Transfers data directly between an open file and the physical pages
+     * backing a region of this process's virtual memory, without an
+     * intermediate buffer. The pages are pinned in batches; runs of physically
+     * contiguous pages are moved with a single file operation at the
+     * descriptor's file offset. The transfer stops at the first short file
+     * operation or untranslatable page.
+     *
+     * @param	descriptor	the file descriptor to transfer to or from.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	reading	<tt>true</tt> to read from the file into memory,
+     *			<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 if nothing could be
+     *		transferred because of an error.
+     */
+    protected int transferFile(FileDescriptor descriptor, int vaddr,
+    		int length, boolean reading)
+    {
+    	if(length == 0) return 0;
+    	
+    	if(vaddr < 0) return -1;
     	
-    	byte[] readBuffer = new byte[size];
+    	byte[] memory = Machine.processor().getMemory();
     	
-    	int bytesRead = file.read(0, readBuffer, 0, size);
+    	int lastVPN = (int) (((long) vaddr + length - 1) / pageSize);
     	
-    	//need to add protections for reading/writing size limits    	
-    	writeVirtualMemory(bufferVAddr, readBuffer);
+    	int amount = 0;
     	
-    	return bytesRead;
+    	boolean failed = false, done = false;
+    	
+    	while(amount < length && !done)
+    	{
+    		int firstVPN = (vaddr + amount) / pageSize;
+    		
+    		int numToPin = Math.min(lastVPN - firstVPN + 1, getPinBatchSize());
+    		
+    		//reading from a file writes to memory, so the pages must be writable
+    		int numPinned = pinVirtualPages(firstVPN, numToPin, reading);
+    		
+    		if(numPinned < numToPin)
+    		{
+    			done = true;
+    			
+    			failed = (numPinned == 0 && amount == 0);
+    		}
+    		
+    		int i = 0;
+    		
+    		while(i < numPinned && amount < length)
+    		{
+    			int pageOffset = (vaddr + amount) % pageSize;
+    			
+    			int paddr = (this.pinnedPages[i]*pageSize) + pageOffset;
+    			
+    			int run = pageSize - pageOffset;
+    			
+    			//coalesce physically contiguous pages into one file operation
+    			for(i++; i < numPinned && this.pinnedPages[i] == this.pinnedPages[i-1] + 1; i++)
+    			{
+    				run += pageSize;
+    			}
+    			
+    			run = Math.min(run, length - amount);
+    			
+    			int transferred;
+    			
+    			if(reading)
+    				transferred = descriptor.read(memory, paddr, run);
+    			else
+    				transferred = descriptor.write(memory, paddr, run);
+    			
+    			if(transferred > 0) amount += transferred;
+    			
+    			if(transferred < run)
+    			{
+    				done = true;
+    				
+    				failed = (transferred < 0 && amount == 0);
+    				
+    				break;
+    			}
+    		}
+    		
+    		unpinPages(numPinned);
+    	}
+    	
+    	return failed ? -1 : amount;
     }
     
     private int handleUnlink(int pathNameVAddress)
@@ -790,17 +935,23 @@ public class UserProcess {
     	
     	int fileHandle = getOpenFileHandle(fileName.trim());
     	
-    	OpenFile file = getOpenFile(fileHandle);
+    	FileDescriptor descriptor = getOpenFile(fileHandle);
     	
     	FileSystem fileSys = Machine.stubFileSystem(); 
     	
-    	//if the file doesn't exist, return -1
-    	if(file == null && (file = 
-    			fileSys.open(fileName, false)) == null)
+    	if(descriptor == null)
     	{
-    		Lib.debug('s', "File to unlink does not exist");
+    		OpenFile file = fileSys.open(fileName, false);
+    		
+    		//if the file doesn't exist, return -1
+    		if(file == null)
+    		{
+    			Lib.debug('s', "File to unlink does not exist");
+    			
+    			return -1;    	    	
+    		}
     		
-    		return -1;    	    	
+    		file.close();
     	}
     	
     	boolean unlinked = fileSys.remove(fileName.trim());
@@ -885,6 +1036,243 @@ public class UserProcess {
     	return 1; //this.exitStatus;
     }
     
+    /**
+     * Handle the fork() system call. Creates a child process with a copy
+     * of this process's address space and open files, which resumes from
+     * the same point with fork() returning 0.
+     * 
+     * @return the child's process ID, or -1 on failure
+     */
+    private int handleFork()
+    {
+    	Lib.debug('s', "UserProcess handling fork...");
+    	
+    	UserProcess process = UserProcess.newUserProcess();
+    	
+    	//set this process as the parent process
+    	process.setParentProcess(this);
+    	
+    	//add the new child process to this process' list of childs
+    	this.addChildProcess(process);
+    	
+    	process.numPages = this.numPages;
+    	
+    	process.initialSP = this.initialSP;
+    	
+    	process.executableName = this.executableName;
+    	
+    	if(!process.copyAddressSpace(this))
+    	{
+    		process.handleExit(-1);
+    		
+    		return -1;
+    	}
+    	
+    	//the child shares this process's open files and their offsets
+    	for(int i = 0; i < MAX_OPEN_FILES; i++)
+    	{
+    		if(process.openFiles[i] != null) process.openFiles[i].close();
+    		
+    		process.openFiles[i] = this.openFiles[i];
+    		
+    		if(this.openFiles[i] != null) this.openFiles[i].share();
+    	}
+    	
+    	process.numOpenFiles = this.numOpenFiles;
+    	
+    	//the child resumes after the syscall, with fork() returning 0
+    	Processor processor = Machine.processor();
+    	
+    	process.forkedRegisters = new int[Processor.numUserRegisters];
+    	
+    	for(int i = 0; i < Processor.numUserRegisters; i++)
+    		process.forkedRegisters[i] = processor.readRegister(i);
+    	
+    	process.forkedRegisters[Processor.regV0] = 0;
+    	
+    	process.forkedRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+    	
+    	process.forkedRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+    	
+    	process.initialThread = (UThread) (new UThread(process)).setName(this.executableName);
+    	
+    	process.initialThread.fork();
+    	
+    	return process.getProcessID();
+    }
+    
+    /**
+     * Gives this (new) process a copy of another process's address space.
+     * Pages are copied eagerly; <tt>VMProcess</tt> shares them copy-on-write.
+     * 
+     * @param parent the process being forked
+     * @return <tt>true</tt> if successful
+     */
+    protected boolean copyAddressSpace(UserProcess parent)
+    {
+    	if(!allocateMemory()) return false;
+    	
+    	byte[] memory = Machine.processor().getMemory();
+    	
+    	for(int i = 0; i < this.numPages; i++)
+    	{
+    		TranslationEntry parentEntry = parent.pageTable[i];
+    		
+    		System.arraycopy(memory, parentEntry.ppn*pageSize, 
+    				memory, this.pageTable[i].ppn*pageSize, pageSize);
+    		
+    		this.pageTable[i].readOnly = parentEntry.readOnly;
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Gives this process a private, writable copy of a virtual page that is
+     * shared copy-on-write with another process. Called when the kernel
+     * needs to write to a read-only page on the process's behalf.
+     * 
+     * @param vpn the virtual page to be written
+     * @return <tt>true</tt> if the page is now writable, or <tt>false</tt>
+     * if it is genuinely read-only
+     */
+    protected boolean copyOnWrite(int vpn)
+    {
+    	return false;
+    }
+    
+    /**
+     * Handle the mmap() system call. Maps the first <tt>length</tt> bytes
+     * of an open file into unused virtual pages of this process. The map
+     * keeps its own reference to the file, so the file descriptor may be
+     * closed while the map is in use.
+     * 
+     * @return the virtual address of the map, or -1 on failure
+     */
+    private int handleMmap(int fileDescriptor, int length)
+    {
+    	Lib.debug('s', "UserProcess handling mmap...");
+    	
+    	FileDescriptor descriptor = getOpenFile(fileDescriptor);
+    	
+    	//streams such as the console can't be mapped
+    	if(descriptor == null || length <= 0 || descriptor.getFile().length() < 0) return -1;
+    	
+    	return mapFile(descriptor, length);
+    }
+    
+    /**
+     * Handle the munmap() system call. Removes the map starting at the given
+     * address, writing the pages that have been modified back to the file.
+     * 
+     * @return 0 on success, or -1 if no map starts at the address
+     */
+    private int handleMunmap(int vaddr)
+    {
+    	Lib.debug('s', "UserProcess handling munmap...");
+    	
+    	return unmapFile(vaddr) ? 0 : -1;
+    }
+    
+    /**
+     * Maps a file into unused virtual pages of this process. Mapped pages
+     * are read from the file when they are first touched, which needs
+     * demand paging; <tt>VMProcess</tt> implements it.
+     * 
+     * @param descriptor the file to map
+     * @param length the number of bytes of the file to map
+     * @return the virtual address of the map, or -1 on failure
+     */
+    protected int mapFile(FileDescriptor descriptor, int length)
+    {
+    	return -1;
+    }
+    
+    /**
+     * Removes a map created by <tt>mapFile()</tt>.
+     * 
+     * @param vaddr the virtual address of the map
+     * @return <tt>true</tt> if a map started at the address
+     */
+    protected boolean unmapFile(int vaddr)
+    {
+    	return false;
+    }
+    
+    /**
+     * Handle the shmat() system call. Attaches this process to the shared
+     * memory segment with the given name, creating it with the given size
+     * if no process is attached to a segment of that name.
+     * 
+     * @return the virtual address of the segment, or -1 on failure
+     */
+    private int handleShmat(int nameVAddress, int size)
+    {
+    	Lib.debug('s', "UserProcess handling shmat...");
+    	
+    	String name = readVirtualMemoryString(nameVAddress, MAX_FILE_NAME_BYTES);
+    	
+    	if(name == null || name.length() == 0) return -1;
+    	
+    	return attachSegment(name, size);
+    }
+    
+    /**
+     * Handle the shmdt() system call. Detaches this process from the shared
+     * memory segment at the given address.
+     * 
+     * @return 0 on success, or -1 if no attached segment starts at the address
+     */
+    private int handleShmdt(int vaddr)
+    {
+    	Lib.debug('s', "UserProcess handling shmdt...");
+    	
+    	return detachSegment(vaddr) ? 0 : -1;
+    }
+    
+    /**
+     * Attaches this process to a named shared memory segment, which needs
+     * frames shared between processes; <tt>VMProcess</tt> implements it.
+     * 
+     * @return the virtual address of the segment, or -1 on failure
+     */
+    protected int attachSegment(String name, int size)
+    {
+    	return -1;
+    }
+    
+    /**
+     * Detaches this process from a segment attached by <tt>attachSegment()</tt>.
+     * 
+     * @return <tt>true</tt> if a segment was attached at the address
+     */
+    protected boolean detachSegment(int vaddr)
+    {
+    	return false;
+    }
+    
+    /**
+     * Handle the futex_wait() system call. Sleeps until woken by futex_wake()
+     * if the word at the given address still holds the expected value.
+     */
+    private int handleFutexWait(int vaddr, int expected)
+    {
+    	Lib.debug('f', "UserProcess handling futex wait...");
+
+    	return ((UserKernel)Kernel.kernel).futexWait(this, vaddr, expected);
+    }
+
+    /**
+     * Handle the futex_wake() system call. Wakes up to count threads
+     * sleeping on the futex at the given address.
+     */
+    private int handleFutexWake(int vaddr, int count)
+    {
+    	Lib.debug('f', "UserProcess handling futex wake...");
+
+    	return ((UserKernel)Kernel.kernel).futexWake(this, vaddr, count);
+    }
+
     public UThread getInitialThread(){ return this.initialThread; }
     
     public void decrementJoinCount(){ this.outstandingChildJoins--; }
@@ -954,7 +1342,14 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallFutexWait = 13,
+	syscallFutexWake = 14,
+	syscallFork = 15,
+	syscallMunmap = 16,
+	syscallShmat = 17,
+	syscallShmdt = 18;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -975,6 +1370,15 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>char *mmap(int fd, int length);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>17</td><td><tt>char *shmat(char *name, int size);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  shmdt(char *address);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -991,7 +1395,13 @@ public class UserProcess {
 	case syscallCreate:
 		return handleCreate(a0);
 	case syscallExit:
-		return handleExit(a0);
+		handleExit(a0);
+		
+		//the process is gone, so its thread never returns to user mode
+		KThread.finish();
+		
+		Lib.assertNotReached();
+		return 0;
 	case syscallOpen:
 		return handleOpen(a0, false);
 	case syscallWrite:
@@ -1006,6 +1416,20 @@ public class UserProcess {
 		return handleExec(a0, a1, a2);
 	case syscallJoin:
 		return handleJoin(a0, a1);
+	case syscallFutexWait:
+		return handleFutexWait(a0, a1);
+	case syscallFork:
+		return handleFork();
+	case syscallFutexWake:
+		return handleFutexWake(a0, a1);
+	case syscallMmap:
+		return handleMmap(a0, a1);
+	case syscallMunmap:
+		return handleMunmap(a0);
+	case syscallShmat:
+		return handleShmat(a0, a1);
+	case syscallShmdt:
+		return handleShmdt(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -0,0 +1,79 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least recently used replacement using aging counters.
+ * Each time a victim is needed, every resident page's counter is shifted
+ * right and its used bit is shifted in at the top, so a page's counter
+ * records whether it was referenced in each of the last 32 sampling
+ * periods. The page with the lowest counter is evicted, preferring a clean
+ * page when counters tie.
+ *
+ * <p>
+ * Pages are sampled at each eviction rather than on a timer, so a sampling
+ * period is the interval between two page replacements.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+
+	private VMKernel _kernel;
+
+	//reference history of each frame; the most recent sample is the top bit
+	private int[] _age;
+
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(VMKernel kernel, int numPhysPages) {
+    	this._kernel = kernel;
+
+    	this._age = new int[numPhysPages];
+    }
+
+    public void pageLoaded(int ppn, boolean referenced) {
+    	//count a fault as a reference, or a page could be evicted again
+    	//before the faulting process has run to touch it; a page read in
+    	//with its neighbour starts out as the oldest
+    	this._age[ppn] = referenced ? Integer.MIN_VALUE : 0;
+    }
+
+    public void pageRemoved(int ppn) {
+    	this._age[ppn] = 0;
+    }
+
+    public int selectVictim() {
+    	int victim = -1;
+
+    	boolean victimDirty = false;
+
+    	for(int ppn = 0; ppn < this._age.length; ppn++)
+    	{
+    		TranslationEntry entry = this._kernel.getFrameTranslation(ppn);
+
+    		if(entry == null) continue;
+
+    		//sample the used bit of every resident page, pinned or not
+    		this._age[ppn] = (this._age[ppn] >>> 1) | (entry.used ? Integer.MIN_VALUE : 0);
+
+    		entry.used = false;
+
+    		if(!this._kernel.isEvictable(ppn)) continue;
+
+    		//counters compare as unsigned values
+    		int cmp = (victim < 0) ? -1 :
+    			Integer.compare(this._age[ppn] ^ Integer.MIN_VALUE, this._age[victim] ^ Integer.MIN_VALUE);
+
+    		if(cmp < 0 || (cmp == 0 && victimDirty && !entry.dirty))
+    		{
+    			victim = ppn;
+
+    			victimDirty = entry.dirty;
+    		}
+    	}
+
+    	return victim;
+    }
+}
@@ -0,0 +1,60 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A clock (second chance) page replacement policy. The clock hand sweeps
+ * the frames, clearing the used bit of each recently referenced page and
+ * evicting the first page whose used bit is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+
+	private VMKernel _kernel;
+
+	private int _numPhysPages;
+
+	//the frame the clock hand last stopped at
+	private int _hand;
+
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(VMKernel kernel, int numPhysPages) {
+    	this._kernel = kernel;
+
+    	this._numPhysPages = numPhysPages;
+    }
+
+    public void pageLoaded(int ppn, boolean referenced) {
+    }
+
+    public void pageRemoved(int ppn) {
+    }
+
+    public int selectVictim() {
+    	//after one full sweep every evictable page has had its used bit cleared
+    	for(int i = 0; i < 2 * this._numPhysPages; i++)
+    	{
+    		this._hand = (this._hand + 1) % this._numPhysPages;
+
+    		if(!this._kernel.isEvictable(this._hand)) continue;
+
+    		TranslationEntry entry = this._kernel.getFrameTranslation(this._hand);
+
+    		//referenced since the hand last passed - give it a second chance
+    		if(entry.used)
+    		{
+    			entry.used = false;
+
+    			continue;
+    		}
+
+    		return this._hand;
+    	}
+
+    	return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page replacement policy that evicts the page that has been resident the
+ * longest, ignoring how recently it was referenced.
+ */
+public class FIFOPolicy implements PageReplacementPolicy {
+
+	private VMKernel _kernel;
+
+	//the order in which each frame was filled; lower is older
+	private long[] _loadOrder;
+
+	private long _nextLoad;
+
+    /**
+     * Allocate a new FIFO policy.
+     */
+    public FIFOPolicy() {
+    }
+
+    public void initialize(VMKernel kernel, int numPhysPages) {
+    	this._kernel = kernel;
+
+    	this._loadOrder = new long[numPhysPages];
+    }
+
+    public void pageLoaded(int ppn, boolean referenced) {
+    	this._loadOrder[ppn] = this._nextLoad++;
+    }
+
+    public void pageRemoved(int ppn) {
+    }
+
+    public int selectVictim() {
+    	int victim = -1;
+
+    	for(int ppn = 0; ppn < this._loadOrder.length; ppn++)
+    	{
+    		if(!this._kernel.isEvictable(ppn)) continue;
+
+    		if(victim < 0 || this._loadOrder[ppn] < this._loadOrder[victim]) victim = ppn;
+    	}
+
+    	return victim;
+    }
+}
@@ -0,0 +1,57 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which physical page frame to evict when <tt>VMKernel</tt> needs a
+ * frame and none are free. The policy is selected with the
+ * <tt>VMKernel.replacementPolicy</tt> key in nachos.conf.
+ *
+ * <p>
+ * All policies see pages through the same hooks: the kernel reports when a
+ * frame is filled or emptied, and a policy inspects and clears the
+ * <tt>used</tt> and <tt>dirty</tt> bits of a frame's translation through
+ * <tt>VMKernel.getFrameTranslation()</tt>. The kernel folds the bits cached
+ * in the TLB into those translations before every call to
+ * <tt>selectVictim()</tt>.
+ *
+ * <p>
+ * All methods are called with the kernel's page access lock held and
+ * interrupts disabled.
+ */
+public interface PageReplacementPolicy {
+
+    /**
+     * Prepare the policy to manage the given number of page frames.
+     *
+     * @param	kernel	the kernel whose frames are being managed.
+     * @param	numPhysPages	the number of physical page frames.
+     */
+    public void initialize(VMKernel kernel, int numPhysPages);
+
+    /**
+     * Called when a page has been loaded into a frame.
+     *
+     * @param	ppn	the physical page number of the frame.
+     * @param	referenced	<tt>true</tt> if the page was loaded because it
+     *		was referenced, <tt>false</tt> if it was only read in with a
+     *		neighbouring page and may never be used.
+     */
+    public void pageLoaded(int ppn, boolean referenced);
+
+    /**
+     * Called when the page in a frame has been evicted or freed.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public void pageRemoved(int ppn);
+
+    /**
+     * Choose a frame to evict. Only frames for which
+     * <tt>VMKernel.isEvictable()</tt> returns <tt>true</tt> may be chosen.
+     *
+     * @return	the physical page number of the victim, or -1 if no frame
+     *		can be evicted.
+     */
+    public int selectVictim();
+}
@@ -9,7 +9,10 @@ import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /**
@@ -25,7 +28,74 @@ public class VMKernel extends UserKernel {
 	
 	private SwapFileAccess _globalSwapFileAccess;
 	
-	private int _evictionPointer;
+	//chooses which page to evict when no frames are free
+	private PageReplacementPolicy _replacementPolicy;
+	
+	//frames holding read-only executable pages shared between processes,
+	//keyed by executable, section and page
+	private Hashtable<String, Integer> _sharedPages;
+	
+	//frees frames in the background; null if memory is too small for it
+	private PageOutDaemon _pageOutDaemon;
+	
+	//pages being written out with the page access lock released, by swap
+	//owner and virtual page; faults on them wait for the write to finish
+	private HashSet<Long> _pagesOut;
+	
+	//signalled, with the page access lock, when a page out finishes
+	private Condition _pageOutDone;
+	
+	//the daemon wakes below the low watermark of free frames, and
+	//evicts pages until there are as many as the high watermark
+	private int _lowWatermark, _highWatermark;
+	
+	//the process charged for each frame, or -1 for a free or shared frame
+	private int[] _frameOwners;
+	
+	//resident set size and allowance of each process with pages in memory
+	private Hashtable<Integer, ResidentSet> _residentSets;
+	
+	//bounds on each process's resident set allowance, in pages
+	private int _minResidentPages, _maxResidentPages;
+	
+	//a process faulting more often than this, in ticks, has its allowance
+	//raised; one faulting less than half as often has it lowered
+	private int _faultInterval;
+	
+	//the process an eviction in progress is making room for, or -1
+	private int _evictionPID = -1;
+	
+	//true if only frames charged to that process, or shared with it, may be evicted
+	private boolean _localEviction;
+	
+	//the frame of the page that process faulted in before the current
+	//fault, which the instruction being retried may still need, or -1
+	private int _retainedPPN = -1;
+	
+	//true if frames of other processes at their minimum resident set may not be evicted
+	private boolean _protectMinimumSets;
+	
+	//virtual memory statistics of each running process
+	private Hashtable<Integer, VMStats> _processStats;
+	
+	//statistics of every process that has exited
+	private VMStats _totalStats;
+	
+	//shared memory segments with at least one process attached, by name
+	private Hashtable<String, Segment> _segments;
+	
+	//the first virtual page of the next segment created
+	private int _nextSegmentVPN = segmentBaseVPN;
+	
+	//the swap ID of the next segment created
+	private int _nextSegmentID = -2;
+	
+	/**
+	 * The first virtual page of the shared memory segment area. Every
+	 * segment is mapped at the same address in all processes attached to
+	 * it, so that pointers into the segment can be shared.
+	 */
+	public static final int segmentBaseVPN = 0x40000000 / Processor.pageSize;
 	
     /**
      * Allocate a new VM kernel.
@@ -40,15 +110,64 @@ public class VMKernel extends UserKernel {
     public void initialize(String[] args) { 
     	super.initialize(args);
     	
+    	Processor processor = Machine.processor();
+    	
        	//set up global inverted page table
     	this._globalPageTable = new InvertedPageTable();
     	
-    	this._globalPageTable.initialize(8, 8, this);
+    	this._globalPageTable.initialize(processor.getNumPhysPages());
     	
     	//set up global core map
-    	Processor processor = Machine.processor();
-    	
     	this._globalCoreMap = new CoreMapEntry[processor.getNumPhysPages()];        	    	
+    	
+    	this._sharedPages = new Hashtable<String, Integer>();
+    	
+    	this._pagesOut = new HashSet<Long>();
+    	
+    	this._pageOutDone = new Condition(this._pageAccessLock);
+    	
+    	//set up resident set accounting
+    	this._frameOwners = new int[processor.getNumPhysPages()];
+    	
+    	Arrays.fill(this._frameOwners, -1);
+    	
+    	this._residentSets = new Hashtable<Integer, ResidentSet>();
+    	
+    	this._maxResidentPages = Math.min(processor.getNumPhysPages(), Config.getInteger(
+    			"VMKernel.maxResidentPages", processor.getNumPhysPages()));
+    	
+    	this._minResidentPages = Math.min(this._maxResidentPages, Config.getInteger(
+    			"VMKernel.minResidentPages", 4));
+    	
+    	this._faultInterval = Config.getInteger("VMKernel.faultInterval", 5000);
+    	
+    	this._processStats = new Hashtable<Integer, VMStats>();
+    	
+    	this._totalStats = new VMStats();
+    	
+    	this._segments = new Hashtable<String, Segment>();
+    	
+    	//set up page replacement policy
+    	String policyName = Config.getString("VMKernel.replacementPolicy", 
+    			"nachos.vm.ClockPolicy");
+    	
+    	this._replacementPolicy = (PageReplacementPolicy) Lib.constructObject(policyName);
+    	
+    	this._replacementPolicy.initialize(this, processor.getNumPhysPages());
+    	
+    	//set up the page-out daemon
+    	this._lowWatermark = Config.getInteger("VMKernel.lowWatermark", 
+    			processor.getNumPhysPages() / 16);
+    	
+    	this._highWatermark = Math.max(this._lowWatermark + 1, Config.getInteger(
+    			"VMKernel.highWatermark", processor.getNumPhysPages() / 8));
+    	
+    	if(this._lowWatermark > 0)
+    	{
+    		this._pageOutDaemon = new PageOutDaemon();
+    		
+    		this._pageOutDaemon.start();
+    	}
     }
     
     /**
@@ -75,40 +194,31 @@ public class VMKernel extends UserKernel {
      */
     public TranslationEntry loadPageFromSwap(int pid, int vpn)
     {   	
-    	Lib.assertTrue(UserProcess.currentProcess().getProcessID() == pid);
-    	
+    	//pid need not be the running process: exec faults in the new
+    	//process's argument page from the parent's thread
     	TranslationEntry entry = null;
     	
     	try
     	{
     		//enter criical section
     		this._pageAccessLock.acquire();
+    		
+    		//the page may still be on its way out to swap
+    		waitForPageOut(pid, vpn);
+    		
+    		//pages touched for the first time are not in swap; don't evict for them
+    		if(!this._globalSwapFileAccess.contains(pid, vpn)) return null;
 	    	
 	    	//get a free page frame where the new page can go, mark
 	    	//it as in-use
     		
     		Lib.debug('s', "Process requesting free memory (PID " + pid + ")");
     		
-	    	PageFrame targetFrame = getNextFreeMemPage();
-	    	
-	    	if(targetFrame != null) Lib.debug('s', "Obtained free memory (PID " + pid + ")");
+	    	int targetPPN = obtainFrame(pid);
 	    	
-	    	if(targetFrame == null)
-	    	{
-	    		int pageSize = Machine.processor().pageSize;
-	    		
-	    		int physPageNum = evictPage();
-	    		
-	    		targetFrame = new PageFrame();
-	    		
-	    		targetFrame.startIndex = physPageNum * pageSize;
-	    		
-	    		targetFrame.endIndex = (physPageNum * pageSize) + pageSize - 1;
-	    	}
+	    	LinkedList<TranslationEntry> readAround = new LinkedList<TranslationEntry>();
 	    	
-	    	Lib.assertTrue(targetFrame != null);
-	    	
-	    	entry = this._globalSwapFileAccess.loadPage(pid, vpn, targetFrame);
+	    	entry = this._globalSwapFileAccess.loadPage(pid, vpn, targetPPN, readAround);
 	    	
 	    	if(entry != null)
 	    	{
@@ -119,11 +229,21 @@ public class VMKernel extends UserKernel {
 	    	else
 	    	{        	
 	    		//load failed - return the target frame to pool of free mem
-	    		returnFreeMemPage(targetFrame);
-	    	}    	
+	    		freeFrame(targetPPN);
+	    	}
+	    	
+	    	//neighboring pages read in the same I/O, not yet referenced
+	    	for(TranslationEntry neighbor : readAround)
+	    	{
+	    		putTranslation(pid, neighbor, false);
+	    		
+	    		setPageNotInUse(neighbor.ppn);
+	    	}
+	    	
+	    	if(!readAround.isEmpty()) checkLowWatermark();
 	
 	    	//load attempt complete - mark the target page frame as not in use
-	    	setPageNotInUse(targetFrame.startIndex / Machine.processor().pageSize);
+	    	setPageNotInUse(targetPPN);
     	}
     	finally
     	{
@@ -135,6 +255,16 @@ public class VMKernel extends UserKernel {
     }
     
     public void putTranslation(int processID, TranslationEntry entry)
+    {
+    	putTranslation(processID, entry, true);
+    }
+    
+    /*
+     * Adds a page's translation to the global page table and core map, and
+     * reports the load to the replacement policy as a reference unless the
+     * page was only read in with a neighbour.
+     */
+    private void putTranslation(int processID, TranslationEntry entry, boolean referenced)
     {
     	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
     	
@@ -154,6 +284,10 @@ public class VMKernel extends UserKernel {
     	//add entry to core map
     	this._globalCoreMap[entry.ppn] = new CoreMapEntry(processID, entry);
     	
+    	setFrameOwner(entry.ppn, processID);
+    	
+    	this._replacementPolicy.pageLoaded(entry.ppn, referenced);
+    	
     	Lib.debug('s', "Kernel putTranslation success (PID " + processID + " VPN " 
     			+ entry.vpn + ")"); 
     }
@@ -193,7 +327,9 @@ public class VMKernel extends UserKernel {
     }    
 
     /**
-     * Creates a new page and translation entry for that page..
+     * Creates a new page and translation entry for that page. The new
+     * page is returned pinned; the caller must mark it not in use once
+     * it has finished initializing it.
      * @return
      */
     public TranslationEntry newPage(int pid, int vpn, boolean valid, boolean readOnly,
@@ -211,36 +347,12 @@ public class VMKernel extends UserKernel {
     	
     		Lib.debug('s', "Process requesting free memory (PID " + pid + ")");    	
         	        	
-	    	//obtain a free page of physical memory
-	    	UserKernel.PageFrame freeMemPage = getNextFreeMemPage();
-	    	
-	    	if(freeMemPage != null) Lib.debug('s', "Obtained free memory (PID " + pid + ")");
-	    	
-	    	if(freeMemPage != null)
-	    	{ 
-	    		physPageNum = freeMemPage.endIndex / Machine.processor().pageSize;
-	    	}
-	    	else
-	    	{
-	    		physPageNum = evictPage();
-	    	}
-	    	
-	    	Lib.assertTrue(physPageNum >= 0, "Error creating new page: free page is null");	    	
+	    	//obtain a zero-filled page of physical memory
+	    	physPageNum = obtainFrame(pid, true);
 	    	
 	    	//create a translation entry
 	    	entry = new TranslationEntry(vpn,physPageNum, 
 	    			valid, readOnly, used, dirty);    	
-	
-	    	int pageSize = Processor.pageSize;
-	    	
-	    	byte[] memory = Machine.processor().getMemory();
-	    	
-	    	int paddr = entry.ppn*pageSize;
-	    	
-	    	if(paddr < 0 || paddr >= memory.length) return null;
-	    	
-	    	//clear out the bytes
-	    	Arrays.fill(memory, paddr, paddr+pageSize, (byte) 0);
 	    	
 	    	//add the entry to the global inverted page table
 	    	putTranslation(pid, entry);     
@@ -253,251 +365,1839 @@ public class VMKernel extends UserKernel {
     	return entry;
     }
     
-    /*
-     * Evicts a page from main memory and writes it to the swap file.
+    /**
+     * Maps a read-only page of an executable into a process's address space.
+     * Every process running the same executable shares a single copy of the
+     * page: the first process to touch it loads it from the executable, and
+     * later processes map the same frame and translation. The frame is
+     * released when the last process mapping it exits, or is dropped from
+     * all of them at once when it is evicted. Executables are identified by
+     * file name.
      * 
-     * NOTE - this method marks the page as in-use after eviction is
-     * complete. The calling code needs to ensure this is set as not
-     * in use after it performs its critical operations.
+     * @param pid the process mapping the page
+     * @param executableName the name of the executable's file
+     * @param sectionNumber the number of the section within the executable
+     * @param section the section
+     * @param spn the page number within the section
+     * @return the (unpinned) translation entry for the page
      */
-    private int evictPage()
-    {   	    	
-    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
+    public TranslationEntry mapSharedPage(int pid, String executableName, 
+    		int sectionNumber, CoffSection section, int spn)
+    {
+    	String key = executableName + ":" + sectionNumber + ":" + spn;
     	
-    	CoreMapEntry mapEntry = null;
+    	int vpn = section.getFirstVPN() + spn;
     	
-    	int physPageNum = -1;    			
-    
-    	while(mapEntry == null || mapEntry.entry == null || pageInUse(mapEntry.entry.ppn))
-    	{    		
-    		//Currently chooses page at random. TODO: implement nth chance algorithm
-    		//physPageNum = ThreadLocalRandom.current().nextInt(0, _globalCoreMap.length);
-    		physPageNum = this._evictionPointer = (++this._evictionPointer) % (this._globalCoreMap.length);
+    	TranslationEntry entry;
     	
-    		mapEntry = this._globalCoreMap[physPageNum];
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		Integer cachedPPN = this._sharedPages.get(key);
+    		
+    		if(cachedPPN == null)
+    		{
+	    		//the frame is made room for like any other page of the process,
+	    		//but shared pages aren't charged to any process's resident set
+	    		int ppn = obtainFrame(pid);
+	    		
+	    		//another process may have loaded the page while a page was written out
+	    		cachedPPN = this._sharedPages.get(key);
+	    		
+	    		if(cachedPPN == null)
+	    		{
+		    		section.loadPage(spn, ppn);
+		    		
+		    		getProcessStats(pid).numExecutableReads++;
+		    		
+		    		entry = new TranslationEntry(vpn, ppn, true, true, false, false);
+		    		
+		    		putTranslation(pid, entry);
+		    		
+		    		SharedPage sharedPage = new SharedPage(key, false);
+		    		
+		    		sharedPage.processIDs.add(pid);
+		    		
+		    		this._globalCoreMap[ppn].sharedPage = sharedPage;
+		    		
+		    		setFrameOwner(ppn, -1);
+		    		
+		    		this._sharedPages.put(key, ppn);
+		    		
+		    		setPageNotInUse(ppn);
+		    		
+		    		return entry;
+	    		}
+	    		
+	    		setPageNotInUse(ppn);
+	    		
+	    		freeFrame(ppn);
+    		}
+    		
+    		CoreMapEntry mapEntry = this._globalCoreMap[cachedPPN];
+    		
+    		entry = mapEntry.entry;
+    		
+    		mapEntry.sharedPage.processIDs.add(pid);
+    		
+    		this._globalPageTable.put(pid, entry);
+    		
+    		Lib.debug('s', "Mapped shared page " + key + " (PID " + pid + " VPN " + vpn + ")");
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
     	}
     	
-    	Lib.assertTrue(mapEntry != null && mapEntry.entry != null, 
-    			"Error eviction page: entry is null");
-    	
-    	Lib.debug('s', "Evicted page from main memory (PID: " + mapEntry.processID + 
-    			" VPN: " + mapEntry.entry.vpn + ")");
-    	
-    	//mark the page as in use so it can't be evicted by other processes
-    	setPageInUse(mapEntry.entry.ppn);    	
-    	
-    	//write old page to the swap file
-    	this._globalSwapFileAccess.writePage(mapEntry.processID, mapEntry.entry);
-    	
-    	//remove references to the page from core map and global inverted page table
-    	this._globalCoreMap[physPageNum] = null;
-    	
-    	this._globalPageTable.remove(mapEntry.processID, mapEntry.entry.vpn);    	
-    	
-    	invalidateTLBEntry(mapEntry.entry.vpn);    	    	
-    	
-    	return physPageNum;
+    	return entry;
     }
     
-    /**
-     * Invalidates TLB entry with the given vpn if it's in the TLB.
+    /*
+     * Returns a pinned frame for a new page of the given process. A process
+     * whose resident set has reached its allowance replaces one of its own
+     * pages or a shared page it maps, giving up extra frames if its
+     * allowance has shrunk. Otherwise it gets a free frame if
+     * there is one, and failing that a frame evicted on the spot, sparing
+     * other processes at their minimum resident set unless there is no
+     * other choice. Wakes the page-out daemon when the number of free frames
+     * falls below the low watermark, so that later faults usually find a
+     * free frame. Evicting a page releases the page access lock while it is
+     * written out, so shared state looked at before this is called must be
+     * looked at again.
      */
-    private void invalidateTLBEntry(int vpn)
+    private int obtainFrame(int pid)
     {
-    	Lib.assertTrue(Machine.interrupt().disabled());
-    	
-    	Processor processor = Machine.processor();
-    	
-    	for(int i = 0; i < processor.getTLBSize(); i++)
-    	{    		
-    		TranslationEntry entry = processor.readTLBEntry(i);
-    		    		
-    		if(entry != null && entry.vpn == vpn)
-    		{
-    			entry.valid = false;
-    			
-    			processor.writeTLBEntry(i, entry);    		
-    		}   		    		
-    	}
+    	return obtainFrame(pid, false);
     }
     
     /*
-     * Deallocates memory for a process and cleans up
-     * tranlsations, TLB, etc.
+     * Returns a pinned frame for a new page, as above, that is zero-filled
+     * if zeroed is true. A free frame is taken from the pool the idle
+     * thread keeps zeroed, so only an evicted frame has to be cleared here.
      */
-    protected void deallocateProcessMemory(int processID)
-    {    
-    	Lib.assertTrue(Machine.interrupt().disabled());
-    	    	
-    	//remove translations from core map
-    	TranslationEntry[] entries = this._globalPageTable.getAll(processID);
+    private int obtainFrame(int pid, boolean zeroed)
+    {
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
+    	
+    	int ppn = -1;
+    	
+    	boolean free = false;
     	
-    	if(entries == null) return;
+    	ResidentSet residentSet = (pid < 0) ? null : getResidentSet(pid);
     	
-    	for(int i = 0; i < entries.length; i++)
+    	while(ppn < 0 && residentSet != null && residentSet.size >= residentSet.allowance)
     	{
-    		if(entries[i] != null)
+    		int size = residentSet.size;
+    		
+    		int victim = evictPage(pid, true, false);
+    		
+    		//every page of the process is pinned or retained
+    		if(victim < 0) break;
+    		
+    		//a shared victim makes room without shrinking the resident set
+    		if(residentSet.size < residentSet.allowance || residentSet.size == size)
+    		{
+    			ppn = victim;
+    		}
+    		else
     		{
-    			this._globalCoreMap[entries[i].ppn] = null;
+    			setPageNotInUse(victim);
+    			
+    			freeFrame(victim);
     		}
     	}
     	
-    	//remove translations from global page table
-    	this._globalPageTable.removeAll(processID);
-    	
-    	Lib.debug('d', "Removed core map and page table entries for process " + processID);
-    }
-    
-    /**
-     * Test this kernel.
-     */	
-    public void selfTest() {
-	super.selfTest();
-    }
-
-    /**
-     * Start running user programs.
-     */
-    public void run() {
-	super.run();
-    }
-    
-    /**
-     * Terminate this kernel. Never returns.
-     */
-    public void terminate() {
+    	if(ppn < 0)
+    	{
+    		ppn = zeroed ? allocateZeroedFrame() : allocateFrame();
+    		
+    		if(ppn >= 0)
+    		{
+    			Lib.debug('s', "Obtained free memory");
+    			
+    			setPageInUse(ppn);
+    			
+    			free = true;
+    		}
+    	}
     	
-    	if(this._globalSwapFileAccess != null) this._globalSwapFileAccess.terminate();
+    	if(ppn < 0) ppn = evictPage(pid, false, true);
     	
-    	super.terminate();
-    }
-
-    // dummy variables to make javac smarter
-    private static VMProcess dummy1 = null;
-
-    private static final char dbgVM = 'v';
-    
-    private class CoreMapEntry
-    {
-    	public int processID;
+    	if(ppn < 0) ppn = evictPage();
     	
-    	public TranslationEntry entry;
+    	Lib.assertTrue(ppn >= 0, "Error obtaining frame: no free or evictable page");
     	
-    	public CoreMapEntry(int pid, TranslationEntry entry)
+    	//an evicted frame still holds the old page
+    	if(zeroed && !free)
     	{
-    		this.processID = pid;
+    		int paddr = ppn * Processor.pageSize;
     		
-    		this.entry = entry;
+    		Arrays.fill(Machine.processor().getMemory(), paddr, paddr + Processor.pageSize, (byte) 0);
     	}
+    	
+    	checkLowWatermark();
+    	
+    	return ppn;
     }
-    /** 
-     * An inverted page table. The constructor takes as arguments
-     * the estimated number of processes the OS should support at once,
-     * and the number of estimated pages per process. These are used as
-     * the initial capcity of the underlying hash table lookups.
+    
+    /*
+     * Wakes the page-out daemon if free frames have fallen below the low
+     * watermark.
+     */
+    private void checkLowWatermark()
+    {
+    	if(this._pageOutDaemon != null && freeMemoryAvailable() < this._lowWatermark) 
+    		this._pageOutDaemon.wake();
+    }
+    
+    /*
+     * Evicts a page from main memory, writing it to the swap file if it
+     * has been modified. A clean page is identical to its copy in swap or
+     * in the executable, or is still zero-filled, so it is dropped without
+     * any I/O and rebuilt from that copy when it is next faulted in.
+     * The victim is chosen by the configured page replacement policy.
+     * The page is unmapped before it is written out, and the page access
+     * lock is released during the write, so that other faults and other
+     * write-outs can go ahead; callers must not rely on state they looked
+     * at before the eviction.
      * 
-     * @author luke
-     *
+     * NOTE - this method marks the page as in-use after eviction is
+     * complete. The calling code needs to ensure this is set as not
+     * in use after it performs its critical operations.
+     * 
+     * Returns -1 if every resident page is pinned.
      */
-    private class InvertedPageTable
+    private int evictPage()
     {
-    	private Hashtable<Integer, Hashtable<Integer, TranslationEntry>> _pageTable; 	    	
-    	
-    	private int _numPagesPerProcess;
+    	return evictPage(-1, false, false);
+    }
+    
+    /*
+     * Evicts a page to make room for the given process (or -1), restricting
+     * the replacement policy to the process's own frames and the shared
+     * frames it maps if local is true, and to frames that aren't the last
+     * of another process's minimum resident set if protectMinimumSets is
+     * true. The page the process faulted in before the current fault is
+     * never chosen, so that an instruction touching two pages that aren't
+     * resident can't keep evicting one to fault in the other.
+     */
+    private int evictPage(int pid, boolean local, boolean protectMinimumSets)
+    {   	    	
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
     	
-    	private Lock _pageTableLock;
+    	//the processor sets used bits in the TLB's copies of the translations
+    	syncTLBEntries();
     	
-    	private VMKernel _kernel;
+    	int physPageNum;
     	
-    	public void initialize(int numProcesses, int numPagesPerProcess, VMKernel kernel)
+    	try
     	{
-    		this._numPagesPerProcess = numPagesPerProcess;
+    		this._evictionPID = pid;
     		
-    		this._pageTable = new Hashtable<Integer, 
-    				Hashtable<Integer, TranslationEntry>>(numProcesses); 
+    		this._localEviction = local;
     		
-    		this._pageTableLock = new nachos.threads.Lock();
+    		this._protectMinimumSets = protectMinimumSets;
     		
-    		this._kernel = kernel;
+    		this._retainedPPN = getRetainedFrame(pid);
+    		
+    		physPageNum = this._replacementPolicy.selectVictim();
+    		
+    		Lib.assertTrue(physPageNum < 0 || isEvictable(physPageNum), 
+    				"Error evicting page: victim is not evictable");
     	}
-    	
-    	/**
-    	 * Adds a translation entry for the given process and virtual
-    	 * page number. If the hashtable for the process doesn't yet exist,
-    	 * create it.
-    	 * 
-    	 * @return
-    	 */
-    	public TranslationEntry put(int processID, TranslationEntry entry)
+    	finally
     	{
-    		Lib.assertTrue(Machine.interrupt().disabled());
+    		this._evictionPID = -1;
     		
-    		try
-    		{
-    			this._pageTableLock.acquire();
-	    		
-    			Lib.debug('s', "Acquired page table lock - put (PID " + processID + ")");
-    			
-	    		Hashtable<Integer, TranslationEntry> processPageTable = 
-	    				this._pageTable.get(processID);
-	    		
-	    		if(processPageTable == null)
-	    		{
-	    			processPageTable = new Hashtable<Integer, TranslationEntry>(this._numPagesPerProcess);
-	    			
-	    			this._pageTable.put(processID, processPageTable);
-	    		}
-	    		
-	    		processPageTable.put(entry.vpn, entry);
-    		}
-    		finally
-    		{
-    			Lib.debug('s', "Releasing page table lock - put (PID " + processID + ")");
-    			
-    			this._pageTableLock.release();
-    		}
+    		this._localEviction = false;
     		
-    		return entry;
+    		this._protectMinimumSets = false;
+    		
+    		this._retainedPPN = -1;
+    	}
+    	
+    	if(physPageNum < 0) return -1;
+    	
+    	CoreMapEntry mapEntry = this._globalCoreMap[physPageNum];
+    	
+    	Lib.debug('s', "Evicted page from main memory (PID: " + mapEntry.processID + 
+    			" VPN: " + mapEntry.entry.vpn + ")");
+    	
+    	//a shared page is lost by every process mapping it
+    	if(mapEntry.sharedPage != null)
+    	{
+    		for(int mapper : mapEntry.sharedPage.processIDs)
+    			getProcessStats(mapper).numPagesEvicted++;
+    	}
+    	else
+    	{
+    		getProcessStats(mapEntry.processID).numPagesEvicted++;
+    	}
+    	
+    	//mark the page as in use so it can't be evicted by other processes
+    	setPageInUse(mapEntry.entry.ppn);    	
+    	
+    	invalidateFrameTLBEntries(physPageNum);
+    	
+    	//remove references to the page from core map and global inverted page
+    	//table before it is written out, so that no process can find the page
+    	//and write to it while the write is in progress
+    	this._globalCoreMap[physPageNum] = null;
+    	
+    	setFrameOwner(physPageNum, -1);
+    	
+    	this._replacementPolicy.pageRemoved(physPageNum);
+    	
+    	if(mapEntry.sharedPage != null)
+    	{
+    		//a shared page is dropped from every process that maps it
+    		if(mapEntry.sharedPage.key != null) this._sharedPages.remove(mapEntry.sharedPage.key);
+    		
+    		for(int mapper : mapEntry.sharedPage.processIDs)
+    			this._globalPageTable.remove(mapper, mapEntry.entry.vpn);
+    	}
+    	else
+    	{
+    		this._globalPageTable.remove(mapEntry.processID, mapEntry.entry.vpn);    	
+    	}
+    	
+    	//the page can't change once it is unmapped, so the lock isn't needed
+    	//to write it out; faults on it wait in waitForPageOut() meanwhile
+    	LinkedList<Long> keys = beginPageOut(mapEntry);
+    	
+    	try
+    	{
+	    	//write old page to the swap file only if it changed since it was loaded
+	    	if(mapEntry.file != null)
+	    		writeMappedPage(mapEntry);
+	    	else if(mapEntry.sharedPage != null && mapEntry.sharedPage.segment != null)
+	    		writeSegmentPage(mapEntry);
+	    	else if(mapEntry.sharedPage != null && mapEntry.sharedPage.copyOnWrite)
+	    		writeCopyOnWritePage(mapEntry);
+	    	else if(mapEntry.entry.dirty)
+	    		this._globalSwapFileAccess.writePage(mapEntry.processID, mapEntry.entry);
+	    	else
+	    		Lib.debug('s', "Dropped clean page (PID: " + mapEntry.processID + 
+	    				" VPN: " + mapEntry.entry.vpn + ")");
+    	}
+    	finally
+    	{
+    		endPageOut(keys);
+    	}
+    	
+    	return physPageNum;
+    }
+    
+    /*
+     * Marks an unmapped page as being written out, under every owner it is
+     * kept in swap for, and releases the page access lock for the write.
+     * Returns the keys the page is marked under.
+     */
+    private LinkedList<Long> beginPageOut(CoreMapEntry mapEntry)
+    {
+    	LinkedList<Long> keys = new LinkedList<Long>();
+    	
+    	if(mapEntry.sharedPage != null && mapEntry.sharedPage.segment != null)
+    	{
+    		keys.add(getPageOutKey(mapEntry.sharedPage.segment.swapID, mapEntry.entry.vpn));
+    	}
+    	else if(mapEntry.sharedPage != null)
+    	{
+    		for(int mapper : mapEntry.sharedPage.processIDs)
+    			keys.add(getPageOutKey(mapper, mapEntry.entry.vpn));
+    	}
+    	else
+    	{
+    		keys.add(getPageOutKey(mapEntry.processID, mapEntry.entry.vpn));
+    	}
+    	
+    	this._pagesOut.addAll(keys);
+    	
+    	this._pageAccessLock.release();
+    	
+    	return keys;
+    }
+    
+    /*
+     * Reacquires the page access lock after a page has been written out,
+     * and wakes the threads waiting for it.
+     */
+    private void endPageOut(LinkedList<Long> keys)
+    {
+    	this._pageAccessLock.acquire();
+    	
+    	this._pagesOut.removeAll(keys);
+    	
+    	this._pageOutDone.wakeAll();
+    }
+    
+    private long getPageOutKey(int owner, int vpn)
+    {
+    	return ((long) owner << 32) | (vpn & 0xFFFFFFFFL);
+    }
+    
+    /*
+     * Waits until a page of the given owner (a process, or a segment's swap
+     * ID) is no longer being written out. The page access lock is released
+     * while waiting.
+     */
+    private void waitForPageOut(int owner, int vpn)
+    {
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
+    	
+    	while(this._pagesOut.contains(getPageOutKey(owner, vpn))) this._pageOutDone.sleep();
+    }
+    
+    /*
+     * Waits until none of the given owner's pages are being written out,
+     * before its swap pages or mapped files are released or copied.
+     */
+    private void waitForPageOuts(int owner)
+    {
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread());
+    	
+    	while(isPagingOut(owner)) this._pageOutDone.sleep();
+    }
+    
+    private boolean isPagingOut(int owner)
+    {
+    	for(long key : this._pagesOut)
+    	{
+    		if((int) (key >> 32) == owner) return true;
+    	}
+    	
+    	return false;
+    }
+    
+    /**
+     * Writes out a copy-on-write page being evicted. The page is written
+     * once, and every process mapping it is given a reference to the same
+     * swap page frame. Nothing is written if the page is clean and every
+     * process already has a copy in swap.
+     */
+    private void writeCopyOnWritePage(CoreMapEntry mapEntry)
+    {
+    	int vpn = mapEntry.entry.vpn;
+    	
+    	boolean write = mapEntry.entry.dirty;
+    	
+    	for(int pid : mapEntry.sharedPage.processIDs)
+    		write |= !this._globalSwapFileAccess.contains(pid, vpn);
+    	
+    	if(!write) return;
+    	
+    	int writer = -1;
+    	
+    	for(int pid : mapEntry.sharedPage.processIDs)
+    	{
+    		if(writer < 0)
+    		{
+    			writer = pid;
+    			
+    			this._globalSwapFileAccess.writePage(pid, mapEntry.entry);
+    		}
+    		else
+    		{
+    			this._globalSwapFileAccess.share(writer, pid, vpn);
+    		}
+    	}
+    }
+    
+    /**
+     * Writes a page of a shared memory segment being evicted to swap, if
+     * it has been written since it was loaded. Segment pages are kept in
+     * swap under the segment's own ID rather than a process ID, since they
+     * outlive any one process attached to the segment.
+     */
+    private void writeSegmentPage(CoreMapEntry mapEntry)
+    {
+    	if(mapEntry.entry.dirty)
+    		this._globalSwapFileAccess.writePage(mapEntry.sharedPage.segment.swapID, mapEntry.entry);
+    	else
+    		Lib.debug('s', "Dropped clean segment page (VPN: " + mapEntry.entry.vpn + ")");
+    }
+    
+    /**
+     * Writes a page of a memory-mapped file being evicted or unmapped back
+     * to the file, if it has been written since it was read in. Only the
+     * bytes of the page that belong to the map are written.
+     */
+    private void writeMappedPage(CoreMapEntry mapEntry)
+    {
+    	if(!mapEntry.entry.dirty)
+    	{
+    		Lib.debug('s', "Dropped clean mapped page (PID: " + mapEntry.processID + 
+    				" VPN: " + mapEntry.entry.vpn + ")");
+    		
+    		return;
+    	}
+    	
+    	//through the descriptor, so its read-ahead doesn't keep the old contents
+    	int bytesWritten = mapEntry.file.writeAt(mapEntry.fileOffset, Machine.processor().getMemory(), 
+    			mapEntry.entry.ppn * Processor.pageSize, mapEntry.fileBytes);
+    	
+    	if(bytesWritten != mapEntry.fileBytes)
+    		Lib.debug('s', "Write back of mapped page failed (PID: " + mapEntry.processID + 
+    				" VPN: " + mapEntry.entry.vpn + ")");
+    	
+    	getProcessStats(mapEntry.processID).numMappedWrites++;
+    	
+    	mapEntry.entry.dirty = false;
+    }
+    
+    /**
+     * Gives a forked child process the parent's address space. Every
+     * resident page of the parent is mapped into the child: executable
+     * pages that are already shared simply gain another process, and
+     * writable pages become read-only pages shared copy-on-write. The child
+     * also gets references to all of the parent's pages in swap. The
+     * parent's TLB must be flushed before this is called.
+     */
+    public void forkAddressSpace(int parentID, int childID)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		//the child gets the parent's copies in swap once they are written
+    		waitForPageOuts(parentID);
+    		
+    		TranslationEntry[] entries = this._globalPageTable.getAll(parentID);
+    		
+    		for(int i = 0; entries != null && i < entries.length; i++)
+    		{
+    			CoreMapEntry mapEntry = this._globalCoreMap[entries[i].ppn];
+    			
+    			//memory-mapped files are not inherited
+    			if(mapEntry.file != null) continue;
+    			
+    			if(mapEntry.sharedPage == null)
+    			{
+    				mapEntry.sharedPage = new SharedPage(null, true);
+    				
+    				mapEntry.sharedPage.processIDs.add(parentID);
+    				
+    				entries[i].readOnly = true;
+    				
+    				setFrameOwner(entries[i].ppn, -1);
+    			}
+    			
+    			mapEntry.sharedPage.processIDs.add(childID);
+    			
+    			this._globalPageTable.put(childID, entries[i]);
+    		}
+    		
+    		this._globalSwapFileAccess.duplicateProcess(parentID, childID);
+    		
+    		//the child is attached to the parent's shared memory segments,
+    		//and already maps their resident pages
+    		for(Segment segment : this._segments.values())
+    		{
+    			if(segment.processIDs.contains(parentID)) segment.processIDs.add(childID);
+    		}
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    	
+    	Lib.debug('s', "Forked address space (PID " + parentID + " to PID " + childID + ")");
+    }
+    
+    /**
+     * Attaches a process to the shared memory segment with the given name,
+     * creating the segment with the given size if it doesn't exist. The
+     * segment's pages are zero-filled on first touch, and are shared by
+     * every process attached to the segment, at the same virtual address.
+     * A segment lasts until the last process attached to it detaches or
+     * exits.
+     * 
+     * @param pid the process to attach
+     * @param name the name of the segment
+     * @param size the size of the segment in bytes, if it is created
+     * @return the first virtual page of the segment, or -1 if the segment
+     * could not be created
+     */
+    public int attachSegment(int pid, String name, int size)
+    {
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		Segment segment = this._segments.get(name);
+    		
+    		if(segment == null)
+    		{
+    			int numPages = (int) (((long) size + Processor.pageSize - 1) / Processor.pageSize);
+    			
+    			//segment addresses are not reused, so the area may run out
+    			if(size <= 0 || numPages > Integer.MAX_VALUE / Processor.pageSize - this._nextSegmentVPN) 
+    				return -1;
+    			
+    			segment = new Segment(name, this._nextSegmentVPN, numPages, this._nextSegmentID--);
+    			
+    			this._nextSegmentVPN += numPages;
+    			
+    			this._segments.put(name, segment);
+    			
+    			Lib.debug('s', "Created segment " + name + " (VPN " + segment.firstVPN + 
+    					" pages " + numPages + ")");
+    		}
+    		
+    		segment.processIDs.add(pid);
+    		
+    		return segment.firstVPN;
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    }
+    
+    /**
+     * Detaches a process from the shared memory segment starting at the
+     * given virtual page. The process's translations for the segment's
+     * resident pages are removed. If no other process is attached, the
+     * segment's frames and swap pages are released.
+     * 
+     * @return <tt>true</tt> if the process was attached to a segment
+     * starting at the page
+     */
+    public boolean detachSegment(int pid, int firstVPN)
+    {
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	boolean detached = false;
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		for(Segment segment : this._segments.values())
+    		{
+    			if(segment.firstVPN == firstVPN && segment.processIDs.contains(pid))
+    			{
+    				detachSegment(pid, segment);
+    				
+    				detached = true;
+    				
+    				break;
+    			}
+    		}
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    		
+    		Machine.interrupt().restore(intStatus);
+    	}
+    	
+    	return detached;
+    }
+    
+    private void detachSegment(int pid, Segment segment)
+    {
+    	Lib.assertTrue(this._pageAccessLock.isHeldByCurrentThread() && Machine.interrupt().disabled());
+    	
+    	//the segment's swap pages may be released below
+    	waitForPageOuts(segment.swapID);
+    	
+    	UserProcess current = currentProcess();
+    	
+    	boolean running = current != null && current.getProcessID() == pid;
+    	
+    	//keep the dirty bits the process set through the TLB
+    	if(running) syncTLBEntries();
+    	
+    	segment.processIDs.remove(pid);
+    	
+    	boolean destroy = segment.processIDs.isEmpty();
+    	
+    	for(int vpn = segment.firstVPN; vpn < segment.firstVPN + segment.numPages; vpn++)
+    	{
+    		Integer ppn = this._sharedPages.get(segment.getKey(vpn));
+    		
+    		if(ppn == null) continue;
+    		
+    		CoreMapEntry mapEntry = this._globalCoreMap[ppn];
+    		
+    		if(mapEntry.sharedPage.processIDs.remove(pid))
+    		{
+    			this._globalPageTable.remove(pid, vpn);
+    			
+    			if(running) invalidateTLBEntry(vpn);
+    		}
+    		
+    		if(!destroy) continue;
+    		
+    		Lib.assertTrue(!pageInUse(ppn));
+    		
+    		this._sharedPages.remove(segment.getKey(vpn));
+    		
+    		this._globalCoreMap[ppn] = null;
+    		
+    		this._replacementPolicy.pageRemoved(ppn);
+    		
+    		freeFrame(ppn);
+    	}
+    	
+    	if(destroy)
+    	{
+    		this._segments.remove(segment.name);
+    		
+    		if(this._globalSwapFileAccess != null) this._globalSwapFileAccess.removeProcess(segment.swapID);
+    		
+    		Lib.debug('s', "Destroyed segment " + segment.name);
+    	}
+    }
+    
+    /**
+     * Maps a page of a shared memory segment into the address space of a
+     * process attached to the segment. If another process has the page
+     * resident, its frame and translation are shared; otherwise the page
+     * is loaded from swap, or zero-filled if it has never been written out.
+     * 
+     * @return the (unpinned) translation entry for the page, or null if the
+     * page isn't part of a segment the process is attached to
+     */
+    public TranslationEntry mapSegmentPage(int pid, int vpn)
+    {
+    	TranslationEntry entry = null;
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		Segment segment = getSegment(pid, vpn);
+    		
+    		if(segment == null) return null;
+    		
+    		//the page may still be on its way out to swap
+    		waitForPageOut(segment.swapID, vpn);
+    		
+    		String key = segment.getKey(vpn);
+    		
+    		Integer cachedPPN = this._sharedPages.get(key);
+    		
+    		if(cachedPPN == null)
+    		{
+	    		boolean inSwap = this._globalSwapFileAccess.contains(segment.swapID, vpn);
+	    		
+	    		int ppn = obtainFrame(pid, !inSwap);
+	    		
+	    		//another process may have faulted the page in, and even written
+	    		//it out again, while a page was written out to make room
+	    		waitForPageOut(segment.swapID, vpn);
+	    		
+	    		cachedPPN = this._sharedPages.get(key);
+	    		
+	    		if(cachedPPN == null)
+	    		{
+	    			//loading from swap overwrites the zero-filled frame
+	    			inSwap = this._globalSwapFileAccess.contains(segment.swapID, vpn);
+	    			
+	    			entry = loadSegmentPage(pid, segment, vpn, ppn, inSwap);
+	    			
+	    			Lib.debug('s', "Mapped segment page (PID " + pid + " VPN " + vpn + ")");
+	    			
+	    			return entry;
+	    		}
+	    		
+	    		setPageNotInUse(ppn);
+	    		
+	    		freeFrame(ppn);
+    		}
+    		
+    		CoreMapEntry mapEntry = this._globalCoreMap[cachedPPN];
+    		
+    		mapEntry.sharedPage.processIDs.add(pid);
+    		
+    		this._globalPageTable.put(pid, mapEntry.entry);
+    		
+    		return mapEntry.entry;
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    }
+    
+    /*
+     * Fills a pinned frame with a page of a segment, from swap or with
+     * zeroes, and maps it as the segment's shared copy of the page. The
+     * frame is unpinned once it is mapped.
+     */
+    private TranslationEntry loadSegmentPage(int pid, Segment segment, int vpn, int ppn, boolean inSwap)
+    {
+    	TranslationEntry entry;
+    	
+    	VMStats stats = getProcessStats(pid);
+    	
+    	if(inSwap)
+    	{
+    		//a swap cache hit doesn't read the disk
+    		if(!this._globalSwapFileAccess.isCached(segment.swapID, vpn)) stats.numSwapReads++;
+    		
+    		entry = this._globalSwapFileAccess.loadPage(segment.swapID, vpn, ppn, null);
+    		
+    		Lib.assertTrue(entry != null, "Error loading segment page from swap");
+    	}
+    	else
+    	{
+    		entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+    		
+    		stats.numZeroFills++;
+    	}
+    	
+    	putTranslation(pid, entry);
+    	
+    	SharedPage sharedPage = new SharedPage(segment.getKey(vpn), false);
+    	
+    	sharedPage.segment = segment;
+    	
+    	sharedPage.processIDs.add(pid);
+    	
+    	this._globalCoreMap[ppn].sharedPage = sharedPage;
+    	
+    	setFrameOwner(ppn, -1);
+    	
+    	this._sharedPages.put(segment.getKey(vpn), ppn);
+    	
+    	setPageNotInUse(ppn);
+    	
+    	return entry;
+    }
+    
+    /*
+     * Returns the segment containing a virtual page, if the process is
+     * attached to it.
+     */
+    private Segment getSegment(int pid, int vpn)
+    {
+    	if(vpn < segmentBaseVPN) return null;
+    	
+    	for(Segment segment : this._segments.values())
+    	{
+    		if(vpn >= segment.firstVPN && vpn < segment.firstVPN + segment.numPages)
+    			return segment.processIDs.contains(pid) ? segment : null;
+    	}
+    	
+    	return null;
+    }
+    
+    /**
+     * Futex words in a shared memory segment are identified by the segment
+     * rather than the process, so that processes attached to the segment
+     * can wait on and wake each other.
+     */
+    @Override
+    protected int getFutexOwner(UserProcess process, int vaddr)
+    {
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		Segment segment = getSegment(process.getProcessID(), vaddr / Processor.pageSize);
+    		
+    		return segment != null ? segment.swapID : process.getProcessID();
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    }
+    
+    /**
+     * Reads a page of a memory-mapped file into a new frame and maps it into
+     * a process's address space. The bytes of the page past the end of the
+     * file, or past the end of the map, are zero-filled. Once the page is
+     * resident it is written back to the file, never to swap.
+     * 
+     * @param pid the process the file is mapped into
+     * @param vpn the virtual page to map
+     * @param file the descriptor the file is mapped through
+     * @param fileOffset the offset in the file of the page's first byte
+     * @param fileBytes the number of bytes of the page that belong to the map
+     * @return the (unpinned) translation entry for the page
+     */
+    public TranslationEntry mapFilePage(int pid, int vpn, FileDescriptor file, 
+    		int fileOffset, int fileBytes)
+    {
+    	TranslationEntry entry = null;
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		//the page may still be being written back to the file
+    		waitForPageOut(pid, vpn);
+    		
+    		int ppn = obtainFrame(pid, true);
+    		
+    		//a short read leaves the rest of the page zero-filled
+    		file.getFile().read(fileOffset, Machine.processor().getMemory(), ppn * Processor.pageSize, fileBytes);
+    		
+    		getProcessStats(pid).numMappedReads++;
+    		
+    		entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+    		
+    		putTranslation(pid, entry);
+    		
+    		CoreMapEntry mapEntry = this._globalCoreMap[ppn];
+    		
+    		mapEntry.file = file;
+    		
+    		mapEntry.fileOffset = fileOffset;
+    		
+    		mapEntry.fileBytes = fileBytes;
+    		
+    		setPageNotInUse(ppn);
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    	
+    	Lib.debug('s', "Mapped file page (PID " + pid + " VPN " + vpn + ")");
+    	
+    	return entry;
+    }
+    
+    /**
+     * Removes the resident pages of a memory-mapped file from a process's
+     * address space, writing the dirty ones back to the file and freeing
+     * their frames. Pages that are not resident have already been written
+     * back when they were evicted.
+     * 
+     * @param pid the process the file is mapped into
+     * @param firstVPN the first virtual page of the map
+     * @param numPages the number of pages in the map
+     */
+    public void unmapFilePages(int pid, int firstVPN, int numPages)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		//pages being evicted are written back before the map goes away
+    		waitForPageOuts(pid);
+    		
+    		//the process may have written to the pages through the TLB
+    		UserProcess current = currentProcess();
+    		
+    		boolean running = current != null && current.getProcessID() == pid;
+    		
+    		if(running) syncTLBEntries();
+    		
+    		for(int vpn = firstVPN; vpn < firstVPN + numPages; vpn++)
+    		{
+    			TranslationEntry entry = this._globalPageTable.get(pid, vpn, false);
+    			
+    			if(entry == null) continue;
+    			
+    			CoreMapEntry mapEntry = this._globalCoreMap[entry.ppn];
+    			
+    			Lib.assertTrue(mapEntry != null && mapEntry.file != null && !pageInUse(entry.ppn));
+    			
+    			writeMappedPage(mapEntry);
+    			
+    			this._globalCoreMap[entry.ppn] = null;
+    			
+    			setFrameOwner(entry.ppn, -1);
+    			
+    			this._replacementPolicy.pageRemoved(entry.ppn);
+    			
+    			this._globalPageTable.remove(pid, vpn);
+    			
+    			if(running) invalidateTLBEntry(vpn);
+    			
+    			freeFrame(entry.ppn);
+    		}
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    	
+    	Lib.debug('s', "Unmapped file pages (PID " + pid + " VPN " + firstVPN + 
+    			" to " + (firstVPN + numPages - 1) + ")");
+    }
+    
+    /**
+     * Makes a resident page writable for a process that has written to it.
+     * If the page is shared copy-on-write with other processes, the process
+     * gets its own copy in a new frame; if it is already private, it is
+     * simply marked writable. The caller must have the page pinned.
+     * 
+     * @return the process's writable translation for the page, or null if
+     * the page is a shared executable page
+     */
+    public TranslationEntry breakCopyOnWrite(int pid, TranslationEntry entry)
+    {
+    	TranslationEntry writable = null;
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		CoreMapEntry mapEntry = this._globalCoreMap[entry.ppn];
+    		
+    		Lib.assertTrue(mapEntry != null && mapEntry.entry == entry);
+    		
+    		SharedPage sharedPage = mapEntry.sharedPage;
+    		
+    		if(sharedPage == null)
+    		{
+    			//the last process left sharing the page can write it in place
+    			entry.readOnly = false;
+    			
+    			writable = entry;
+    		}
+    		else if(sharedPage.copyOnWrite)
+    		{
+    			int ppn = obtainFrame(pid);
+    			
+    			//the other processes may have stopped sharing the page while a
+    			//page was written out to make room; the caller keeps it pinned
+    			if(mapEntry.sharedPage == null)
+    			{
+    				setPageNotInUse(ppn);
+    				
+    				freeFrame(ppn);
+    				
+    				entry.readOnly = false;
+    				
+    				writable = entry;
+    			}
+    			else
+    			{
+    				byte[] memory = Machine.processor().getMemory();
+    				
+    				System.arraycopy(memory, entry.ppn*Processor.pageSize, 
+    						memory, ppn*Processor.pageSize, Processor.pageSize);
+    				
+    				writable = new TranslationEntry(entry.vpn, ppn, true, false, true, false);
+    				
+    				sharedPage.processIDs.remove(pid);
+    				
+    				putTranslation(pid, writable);
+    				
+    				//a page with one process left is private to it again
+    				if(sharedPage.processIDs.size() == 1)
+    				{
+    					mapEntry.processID = sharedPage.processIDs.iterator().next();
+    					
+    					mapEntry.sharedPage = null;
+    					
+    					setFrameOwner(entry.ppn, mapEntry.processID);
+    				}
+    				
+    				setPageNotInUse(ppn);
+    				
+    				Lib.debug('s', "Copied page on write (PID " + pid + " VPN " + entry.vpn + ")");
+    			}
+    		}
+    		
+    		if(writable != null)
+    		{
+    			writable.dirty = true;
+    			
+    			UserProcess current = currentProcess();
+    			
+    			//drop the read-only copy of the translation from the TLB
+    			if(current != null && current.getProcessID() == pid) invalidateTLBEntry(entry.vpn);
+    		}
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    	
+    	return writable;
+    }
+    
+    /**
+     * Returns the translation of the page in the given frame, or null if
+     * the frame holds no page. Used by page replacement policies to read
+     * and clear the frame's used and dirty bits.
+     */
+    public TranslationEntry getFrameTranslation(int ppn)
+    {
+    	CoreMapEntry mapEntry = this._globalCoreMap[ppn];
+    	
+    	return mapEntry == null ? null : mapEntry.entry;
+    }
+    
+    /**
+     * Returns true if the given frame holds a page that is not pinned, and
+     * that the eviction in progress may take: while a process is replacing
+     * its own pages only its frames and the shared frames it maps qualify,
+     * the page it faulted in before the current fault is kept, and frames
+     * of other processes at their minimum resident set may be protected.
+     */
+    public boolean isEvictable(int ppn)
+    {
+    	if(ppn < 0 || ppn >= this._globalCoreMap.length) return false;
+    	
+    	CoreMapEntry mapEntry = this._globalCoreMap[ppn];
+    	
+    	if(mapEntry == null || mapEntry.entry == null || pageInUse(ppn)) return false;
+    	
+    	if(ppn == this._retainedPPN) return false;
+    	
+    	int owner = this._frameOwners[ppn];
+    	
+    	if(this._localEviction && owner != this._evictionPID && (owner >= 0 || 
+    			mapEntry.sharedPage == null || !mapEntry.sharedPage.processIDs.contains(this._evictionPID)))
+    	{
+    		return false;
+    	}
+    	
+    	if(this._protectMinimumSets)
+    	{
+    		//a shared page is protected if any process mapping it is
+    		if(owner >= 0) return !isProtected(owner);
+    		
+    		if(mapEntry.sharedPage != null)
+    		{
+    			for(int mapper : mapEntry.sharedPage.processIDs)
+    			{
+    				if(isProtected(mapper)) return false;
+    			}
+    		}
+    	}
+    	
+    	return true;
+    }
+    
+    /*
+     * Returns true if the eviction in progress must spare the process's
+     * pages because it is down to its minimum resident set.
+     */
+    private boolean isProtected(int pid)
+    {
+    	return pid != this._evictionPID && getResidentSet(pid).size <= this._minResidentPages;
+    }
+    
+    /**
+     * Records a page fault by a process on the given virtual page and
+     * adjusts its resident set allowance by page fault frequency: a process
+     * faulting again within <tt>VMKernel.faultInterval</tt> ticks is allowed
+     * another page, and one that went more than twice that long without
+     * faulting gives one up, within <tt>VMKernel.minResidentPages</tt> and
+     * <tt>VMKernel.maxResidentPages</tt>.
+     */
+    public void recordPageFault(int pid, int vpn)
+    {
+    	long now = Machine.timer().getTime();
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		ResidentSet residentSet = getResidentSet(pid);
+    		
+    		if(residentSet.lastFaultTime >= 0)
+    		{
+    			long interval = now - residentSet.lastFaultTime;
+    			
+    			if(interval < this._faultInterval && residentSet.allowance < this._maxResidentPages)
+    				residentSet.allowance++;
+    			else if(interval > 2 * this._faultInterval && residentSet.allowance > this._minResidentPages)
+    				residentSet.allowance--;
+    		}
+    		
+    		residentSet.lastFaultTime = now;
+    		
+    		residentSet.retainedVPN = residentSet.lastFaultVPN;
+    		
+    		residentSet.lastFaultVPN = vpn;
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    }
+    
+    /*
+     * Returns the resident set of a process, creating it if the process
+     * has none yet. A new process starts with half of memory as its
+     * allowance, within the configured bounds.
+     */
+    private ResidentSet getResidentSet(int pid)
+    {
+    	ResidentSet residentSet = this._residentSets.get(pid);
+    	
+    	if(residentSet == null)
+    	{
+    		int allowance = Math.max(this._minResidentPages, 
+    				Math.min(this._maxResidentPages, this._frameOwners.length / 2));
+    		
+    		residentSet = new ResidentSet(allowance);
+    		
+    		this._residentSets.put(pid, residentSet);
+    	}
+    	
+    	return residentSet;
+    }
+    
+    /**
+     * Returns the virtual memory statistics of a process, creating them if
+     * the process has none yet. They are discarded when the process exits.
+     */
+    public VMStats getProcessStats(int pid)
+    {
+    	VMStats stats = this._processStats.get(pid);
+    	
+    	if(stats == null)
+    	{
+    		stats = new VMStats();
+    		
+    		this._processStats.put(pid, stats);
+    	}
+    	
+    	return stats;
+    }
+    
+    /*
+     * Returns the frame of the page a process faulted in before its current
+     * fault, or -1 if the page is no longer resident or there is no process.
+     */
+    private int getRetainedFrame(int pid)
+    {
+    	ResidentSet residentSet = (pid < 0) ? null : this._residentSets.get(pid);
+    	
+    	if(residentSet == null || residentSet.retainedVPN < 0) return -1;
+    	
+    	TranslationEntry entry = this._globalPageTable.get(pid, residentSet.retainedVPN, false);
+    	
+    	return entry == null ? -1 : entry.ppn;
+    }
+    
+    /*
+     * Charges a frame to a process's resident set, or to none if pid is -1,
+     * releasing the charge to its previous owner.
+     */
+    private void setFrameOwner(int ppn, int pid)
+    {
+    	int owner = this._frameOwners[ppn];
+    	
+    	if(owner == pid) return;
+    	
+    	if(owner >= 0) getProcessStats(owner).setResidentPages(--getResidentSet(owner).size);
+    	
+    	if(pid >= 0) getProcessStats(pid).setResidentPages(++getResidentSet(pid).size);
+    	
+    	this._frameOwners[ppn] = pid;
+    }
+    
+    /**
+     * Copies the used and dirty bits the processor has set in the TLB back
+     * into the kernel's translations for the running process, and clears the
+     * used bits in the TLB so that later references are seen by the next
+     * sweep of the clock hand. The TLB only holds copies of translations, so
+     * this must be done before they are inspected or the TLB is invalidated.
+     */
+    public void syncTLBEntries()
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	for(int i = 0; i < Machine.processor().getTLBSize(); i++)
+    	{
+    		syncTLBEntry(i);
+    	}
+    }
+    
+    /**
+     * Copies the used and dirty bits of a single TLB slot back into the
+     * running process's translation, and clears the slot's used bit. Called
+     * for a slot that is about to be overwritten. A kernel thread, such as
+     * the page-out daemon, may find the last user process's entries still
+     * in the TLB, so they are matched by frame and page when no process is
+     * running.
+     * 
+     * @param index the TLB slot
+     */
+    public void syncTLBEntry(int index)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	UserProcess current = currentProcess();
+    	
+    	Processor processor = Machine.processor();
+    	
+    	TranslationEntry tlbEntry = processor.readTLBEntry(index);
+    	
+    	if(!tlbEntry.valid || tlbEntry.ppn < 0 || tlbEntry.ppn >= this._globalCoreMap.length) return;
+    	
+    	CoreMapEntry mapEntry = this._globalCoreMap[tlbEntry.ppn];
+    	
+    	//skip stale TLB entries for frames that have since been reused
+    	if(mapEntry == null || mapEntry.entry.vpn != tlbEntry.vpn ||
+    			(current != null && !mapEntry.isMappedBy(current.getProcessID()))) return;
+    	
+    	mapEntry.entry.used |= tlbEntry.used;
+    	
+    	mapEntry.entry.dirty |= tlbEntry.dirty;
+    	
+    	if(tlbEntry.used)
+    	{
+    		tlbEntry.used = false;
+    		
+    		processor.writeTLBEntry(index, tlbEntry);
+    	}
+    }
+    
+    /*
+     * Invalidates the TLB entries for the page in the given frame, keeping
+     * the used and dirty bits they hold. Entries are matched by frame and
+     * page rather than by the running process, so this also works from a
+     * kernel thread. Saved shadow TLB entries need not be touched, since
+     * they are only reloaded if the page is still mapped to the same frame.
+     */
+    private void invalidateFrameTLBEntries(int ppn)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	Processor processor = Machine.processor();
+    	
+    	int vpn = this._globalCoreMap[ppn].entry.vpn;
+    	
+    	for(int i = 0; i < processor.getTLBSize(); i++)
+    	{
+    		TranslationEntry entry = processor.readTLBEntry(i);
+    		
+    		if(!entry.valid || entry.ppn != ppn || entry.vpn != vpn) continue;
+    		
+    		syncTLBEntry(i);
+    		
+    		entry.valid = false;
+    		
+    		processor.writeTLBEntry(i, entry);
+    	}
+    }
+    
+    /**
+     * Invalidates TLB entry with the given vpn if it's in the TLB.
+     */
+    private void invalidateTLBEntry(int vpn)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	Processor processor = Machine.processor();
+    	
+    	for(int i = 0; i < processor.getTLBSize(); i++)
+    	{    		
+    		TranslationEntry entry = processor.readTLBEntry(i);
+    		    		
+    		if(entry != null && entry.vpn == vpn)
+    		{
+    			entry.valid = false;
+    			
+    			processor.writeTLBEntry(i, entry);    		
+    		}   		    		
+    	}
+    }
+    
+    /*
+     * Deallocates memory for a process and cleans up
+     * tranlsations, TLB, etc. The process's frames, inverted page
+     * table entries and swap page frames are all released in one pass
+     * under the page access lock.
+     */
+    protected void deallocateProcessMemory(int processID)
+    {    
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	try
+    	{
+    		this._pageAccessLock.acquire();
+    		
+    		//detach from shared memory segments, releasing those no one else uses
+    		for(Segment segment : new LinkedList<Segment>(this._segments.values()))
+    		{
+    			if(segment.processIDs.contains(processID)) detachSegment(processID, segment);
+    		}
+    		
+	    	//the process's swap pages are released below
+	    	waitForPageOuts(processID);
+	    	
+	    	//remove translations from core map
+	    	TranslationEntry[] entries = this._globalPageTable.getAll(processID);
+	    	
+	    	if(entries != null)
+	    	{
+	    		int[] ppns = new int[entries.length];
+	    		
+	    		int numFrames = 0;
+	    		
+		    	for(int i = 0; i < entries.length; i++)
+		    	{
+		    		if(entries[i] != null)
+		    		{
+		    			CoreMapEntry mapEntry = this._globalCoreMap[entries[i].ppn];
+		    			
+		    			//shared pages stay resident until their last process exits
+		    			if(mapEntry != null && mapEntry.sharedPage != null)
+		    			{
+		    				SharedPage sharedPage = mapEntry.sharedPage;
+		    				
+		    				sharedPage.processIDs.remove(processID);
+		    				
+		    				//a copy-on-write page with one process left is private to it again
+		    				if(sharedPage.copyOnWrite && sharedPage.processIDs.size() == 1)
+		    				{
+		    					mapEntry.processID = sharedPage.processIDs.iterator().next();
+		    					
+		    					mapEntry.sharedPage = null;
+		    					
+		    					setFrameOwner(entries[i].ppn, mapEntry.processID);
+		    				}
+		    				
+		    				if(!sharedPage.processIDs.isEmpty()) continue;
+		    				
+		    				if(sharedPage.key != null) this._sharedPages.remove(sharedPage.key);
+		    			}
+		    			
+		    			this._globalCoreMap[entries[i].ppn] = null;
+		    			
+		    			setFrameOwner(entries[i].ppn, -1);
+		    			
+		    			this._replacementPolicy.pageRemoved(entries[i].ppn);
+		    			
+		    			ppns[numFrames++] = entries[i].ppn;
+		    		}
+		    	}
+		    	
+		    	//return the frames to the pool of free memory
+		    	freeFrames(ppns, numFrames);
+	    	}
+	    	
+	    	//remove translations from global page table
+	    	this._globalPageTable.removeAll(processID);
+	    	
+	    	this._residentSets.remove(processID);
+	    	
+	    	//report the process's statistics on exit and add them to the totals
+	    	VMStats stats = this._processStats.remove(processID);
+	    	
+	    	if(stats != null)
+	    	{
+	    		stats.print("PID " + processID);
+	    		
+	    		this._totalStats.add(stats);
+	    	}
+	    	
+	    	//return the process's swap slots to the free pool
+	    	if(this._globalSwapFileAccess != null) this._globalSwapFileAccess.removeProcess(processID);
+    	}
+    	finally
+    	{
+    		this._pageAccessLock.release();
+    	}
+    	
+    	Lib.debug('d', "Released memory, page table and swap entries for process " + processID);
+    }
+    
+    /**
+     * Test this kernel.
+     */	
+    public void selfTest() {
+	super.selfTest();
+    }
+
+    /**
+     * Start running user programs.
+     */
+    public void run() {
+	super.run();
+    }
+    
+    /**
+     * Terminate this kernel. Never returns.
+     */
+    public void terminate() {
+    	
+    	//processes still running when the machine halts count towards the totals
+    	for(VMStats stats : this._processStats.values())
+    		this._totalStats.add(stats);
+    	
+    	this._totalStats.print("all processes");
+    	
+    	if(this._globalSwapFileAccess != null) this._globalSwapFileAccess.terminate();
+    	
+    	super.terminate();
+    }
+
+    // dummy variables to make javac smarter
+    private static VMProcess dummy1 = null;
+
+    private static final char dbgVM = 'v';
+    
+    /**
+     * A kernel thread that keeps a reserve of free frames. It sleeps until
+     * a thread taking a frame leaves fewer free frames than the low
+     * watermark, then evicts pages, writing out the dirty ones, until the
+     * high watermark is reached. Each page is chosen and unmapped with the
+     * page access lock held and interrupts disabled, but the lock is
+     * released while the page is written out, and between pages, so that
+     * faulting processes are not held up by the daemon's I/O. A thread
+     * that finds no free frame still evicts one itself.
+     */
+    private class PageOutDaemon implements Runnable
+    {
+    	private Semaphore _wakeup = new Semaphore(0);
+    	
+    	//true while a wakeup is pending or a batch is being freed
+    	private boolean _awake;
+    	
+    	public void start()
+    	{
+    		KThread thread = new KThread(this);
+    		
+    		thread.setName("page-out daemon");
+    		
+    		thread.fork();
+    	}
+    	
+    	public void wake()
+    	{
+    		if(this._awake) return;
+    		
+    		this._awake = true;
+    		
+    		this._wakeup.V();
+    	}
+    	
+    	public void run()
+    	{
+    		while(true)
+    		{
+    			this._wakeup.P();
+    			
+    			int numFreed = 0;
+    			
+    			while(freeMemoryAvailable() < _highWatermark && freeOneFrame()) numFreed++;
+    			
+    			Lib.debug('s', "Page-out daemon freed " + numFreed + " frames");
+    			
+    			this._awake = false;
+    		}
+    	}
+    	
+    	//evicts a page and frees its frame; returns false if every page is pinned
+    	private boolean freeOneFrame()
+    	{
+    		boolean intStatus = Machine.interrupt().disable();
+    		
+    		int ppn = -1;
+    		
+    		try
+    		{
+    			_pageAccessLock.acquire();
+    			
+    			//the TLB may still hold the last process's translations; the
+    			//victim's are folded into the kernel's and invalidated
+    			ppn = evictPage(-1, false, true);
+    			
+    			if(ppn >= 0)
+    			{
+    				setPageNotInUse(ppn);
+    				
+    				freeFrame(ppn);
+    			}
+    		}
+    		finally
+    		{
+    			_pageAccessLock.release();
+    		}
+    		
+    		Machine.interrupt().restore(intStatus);
+    		
+    		return ppn >= 0;
+    	}
+    }
+    
+    /**
+     * The number of frames charged to a process, and the number it may
+     * hold before it has to replace its own pages. Shared pages are not
+     * charged to any process.
+     */
+    private class ResidentSet
+    {
+    	public int size;
+    	
+    	public int allowance;
+    	
+    	//the time of the process's last page fault, or -1 if it has not faulted
+    	public long lastFaultTime = -1;
+    	
+    	//the virtual pages of the process's last two page faults, or -1
+    	public int lastFaultVPN = -1, retainedVPN = -1;
+    	
+    	public ResidentSet(int allowance)
+    	{
+    		this.allowance = allowance;
+    	}
+    }
+    
+    private class CoreMapEntry
+    {
+    	public int processID;
+    	
+    	public TranslationEntry entry;
+    	
+    	//non-null if the frame holds a read-only page shared between processes
+    	public SharedPage sharedPage;
+    	
+    	//non-null if the frame holds a page of a memory-mapped file, which is
+    	//written back to the file rather than to swap
+    	public FileDescriptor file;
+    	
+    	//where the page is in the file, and how many of its bytes belong to the map
+    	public int fileOffset, fileBytes;
+    	
+    	public CoreMapEntry(int pid, TranslationEntry entry)
+    	{
+    		this.processID = pid;
+    		
+    		this.entry = entry;
+    	}
+    	
+    	public boolean isMappedBy(int pid)
+    	{
+    		return this.sharedPage == null ? this.processID == pid : 
+    			this.sharedPage.processIDs.contains(pid);
+    	}
+    }
+    
+    /**
+     * A page mapped by one or more processes: either a read-only executable
+     * page, or a writable page shared copy-on-write after a fork. All the
+     * processes share the page's translation entry, which is read-only.
+     */
+    private class SharedPage
+    {
+    	//key of the page in the shared executable page cache; null for a
+    	//copy-on-write page
+    	public String key;
+    	
+    	//true if each process gets its own copy of the page when it writes it
+    	public boolean copyOnWrite;
+    	
+    	//non-null if the page belongs to a shared memory segment, and is
+    	//writable by every process mapping it
+    	public Segment segment;
+    	
+    	//the processes mapping the page
+    	public HashSet<Integer> processIDs = new HashSet<Integer>();
+    	
+    	public SharedPage(String key, boolean copyOnWrite)
+    	{
+    		this.key = key;
+    		
+    		this.copyOnWrite = copyOnWrite;
+    	}
+    }
+    
+    /**
+     * A named shared memory segment: a run of virtual pages at the same
+     * address in every process attached to it. Resident pages are shared
+     * pages of the core map, found by key, and pages written out are kept
+     * in swap under the segment's swap ID, a negative number that can't
+     * clash with a process ID.
+     */
+    private class Segment
+    {
+    	public String name;
+    	
+    	public int firstVPN, numPages;
+    	
+    	public int swapID;
+    	
+    	//the processes attached to the segment
+    	public HashSet<Integer> processIDs = new HashSet<Integer>();
+    	
+    	public Segment(String name, int firstVPN, int numPages, int swapID)
+    	{
+    		this.name = name;
+    		
+    		this.firstVPN = firstVPN;
+    		
+    		this.numPages = numPages;
+    		
+    		this.swapID = swapID;
+    	}
+    	
+    	//the key of one of the segment's pages in the shared page cache
+    	public String getKey(int vpn)
+    	{
+    		return "segment " + this.swapID + ":" + vpn;
+    	}
+    }
+    
+    /** 
+     * An inverted page table mapping a process ID and virtual page number to
+     * the physical frame holding the page. The table is a single open
+     * addressed hash table with linear probing: each key packs the process
+     * ID and virtual page number into a long, and the matching slot of a
+     * parallel array holds the frame number. The translation itself is
+     * found through the core map, so lookups do not box or allocate.
+     * 
+     * <p>
+     * The table starts with room for twice the number of physical frames and
+     * doubles when it becomes half full, which only happens when many
+     * processes map the same shared pages. All methods must be called with
+     * the page access lock held.
+     * 
+     * @author luke
+     *
+     */
+    private class InvertedPageTable
+    {
+    	//marks an empty slot; process IDs and page numbers are never negative
+    	private static final long _emptyKey = -1L;
+    	
+    	private long[] _keys;
+    	
+    	private int[] _frames;
+    	
+    	private int _mask;
+    	
+    	private int _size;
+    	
+    	public void initialize(int numPhysPages)
+    	{
+    		int capacity = 16;
+    		
+    		while(capacity < 2 * numPhysPages) capacity <<= 1;
+    		
+    		allocate(capacity);
+    	}
+    	
+    	private void allocate(int capacity)
+    	{
+    		this._keys = new long[capacity];
+    		
+    		this._frames = new int[capacity];
+    		
+    		Arrays.fill(this._keys, _emptyKey);
+    		
+    		this._mask = capacity - 1;
+    		
+    		this._size = 0;
+    	}
+    	
+    	private long key(int processID, int virtualPageNumber)
+    	{
+    		return ((long) processID << 32) | (virtualPageNumber & 0xFFFFFFFFL);
+    	}
+    	
+    	private int home(long key)
+    	{
+    		//Fibonacci hashing spreads consecutive page numbers across the table
+    		long hash = key * 0x9E3779B97F4A7C15L;
+    		
+    		return (int) (hash ^ (hash >>> 32)) & this._mask;
+    	}
+    	
+    	//returns the slot holding the key, or the empty slot where it belongs
+    	private int find(long key)
+    	{
+    		int slot = home(key);
+    		
+    		while(this._keys[slot] != _emptyKey && this._keys[slot] != key)
+    		{
+    			slot = (slot + 1) & this._mask;
+    		}
+    		
+    		return slot;
     	}
     	
     	/**
-    	 * Retrieves a translation entry based on process id and 
-    	 * virtual page number. Returns null if either do not exist.
-    	 * @param processID
-    	 * @param virtualPageNumber
+    	 * Adds or replaces the translation for the given process and the
+    	 * entry's virtual page number.
+    	 * 
     	 * @return
     	 */
-    	public TranslationEntry get(int processID, int virtualPageNumber, boolean markPageInUse)
+    	public TranslationEntry put(int processID, TranslationEntry entry)
     	{
-    		TranslationEntry entry = null;
-    		    		
-    		//critical section
-    		try
+    		Lib.assertTrue(Machine.interrupt().disabled());
+    		
+    		Lib.assertTrue(_pageAccessLock.isHeldByCurrentThread());
+    		
+    		if(2 * (this._size + 1) > this._keys.length) grow();
+    		
+    		long key = key(processID, entry.vpn);
+    		
+    		int slot = find(key);
+    		
+    		if(this._keys[slot] == _emptyKey)
     		{
-    			this._pageTableLock.acquire();    		
+    			this._keys[slot] = key;
     			
-    			Lib.debug('s', "Acquired page table lock - get (PID " + processID + ")");
-	    		
-	    		Hashtable<Integer, TranslationEntry> processPageTable 
-	    			= this._pageTable.get(processID);
-	    		
-	    		if(processPageTable != null)
-	    		{
-	    			entry = processPageTable.get(virtualPageNumber);	    		
-	    		}   			    
-	    		
-	    		if(entry != null) Lib.assertTrue(!this._kernel.pageInUse(entry.ppn));
-	    		
-	    		if(entry != null && markPageInUse) this._kernel.setPageInUse(entry.ppn);
+    			this._size++;
     		}
-    		finally
+    		
+    		this._frames[slot] = entry.ppn;
+    		
+    		return entry;
+    	}
+    	
+    	private void grow()
+    	{
+    		long[] keys = this._keys;
+    		
+    		int[] frames = this._frames;
+    		
+    		allocate(keys.length << 1);
+    		
+    		for(int i = 0; i < keys.length; i++)
     		{
-    			Lib.debug('s', "Releasing page table lock - get (PID " + processID + ")");
+    			if(keys[i] == _emptyKey) continue;
+    			
+    			int slot = find(keys[i]);
+    			
+    			this._keys[slot] = keys[i];
     			
-    			this._pageTableLock.release();
+    			this._frames[slot] = frames[i];
+    			
+    			this._size++;
     		}
+    	}
+    	
+    	/**
+    	 * Retrieves a translation entry based on process id and 
+    	 * virtual page number. Returns null if the page is not resident.
+    	 * @param processID
+    	 * @param virtualPageNumber
+    	 * @return
+    	 */
+    	public TranslationEntry get(int processID, int virtualPageNumber, boolean markPageInUse)
+    	{
+    		//the table is never left half-updated, so a reader with interrupts
+    		//disabled sees a consistent table
+    		Lib.assertTrue(_pageAccessLock.isHeldByCurrentThread() || 
+    				(Machine.interrupt().disabled() && !markPageInUse));
     		
-    		return entry;
+    		int slot = find(key(processID, virtualPageNumber));
+    		
+    		if(this._keys[slot] == _emptyKey) return null;
+    		
+    		int ppn = this._frames[slot];
+    		
+    		CoreMapEntry mapEntry = _globalCoreMap[ppn];
+    		
+    		if(mapEntry == null) return null;
+    		
+    		if(markPageInUse) setPageInUse(ppn);
+    		
+    		return mapEntry.entry;
     	}
     	
     	/*
@@ -507,26 +2207,74 @@ public class VMKernel extends UserKernel {
     	{
     		Lib.assertTrue(Machine.interrupt().disabled());
     		
-    		Hashtable<Integer, TranslationEntry> processPageTable
-    			= this._pageTable.get(processID);
+    		Lib.assertTrue(_pageAccessLock.isHeldByCurrentThread());
     		
-    		if(processPageTable == null || processPageTable.values() == null) return null;
+    		LinkedList<TranslationEntry> entries = new LinkedList<TranslationEntry>();
+    		
+    		for(int i = 0; i < this._keys.length; i++)
+    		{
+    			if(this._keys[i] == _emptyKey || (int) (this._keys[i] >>> 32) != processID) continue;
+    			
+    			CoreMapEntry mapEntry = _globalCoreMap[this._frames[i]];
+    			
+    			if(mapEntry != null) entries.add(mapEntry.entry);
+    		}
     		
-    		Object[] values = processPageTable.values().toArray();
+    		if(entries.isEmpty()) return null;
     		    		
-    		return Arrays.copyOf(values, values.length, TranslationEntry[].class);
+    		return entries.toArray(new TranslationEntry[entries.size()]);
     	}
     	
     	public TranslationEntry remove(int processID, int virtualPageNumber)
     	{
     		Lib.assertTrue(Machine.interrupt().disabled());
     		
-    		Hashtable<Integer, TranslationEntry> processPageTable 
-    			= this._pageTable.get(processID);
-		
-    		if(processPageTable == null) return null;
-		
-    		return processPageTable.remove(virtualPageNumber);	
+    		Lib.assertTrue(_pageAccessLock.isHeldByCurrentThread());
+    		
+    		int slot = find(key(processID, virtualPageNumber));
+    		
+    		if(this._keys[slot] == _emptyKey) return null;
+    		
+    		CoreMapEntry mapEntry = _globalCoreMap[this._frames[slot]];
+    		
+    		removeSlot(slot);
+    		
+    		return mapEntry == null ? null : mapEntry.entry;
+    	}
+    	
+    	/*
+    	 * Empties a slot, moving later keys in its probe sequence back so
+    	 * that every key stays reachable from its home slot.
+    	 */
+    	private void removeSlot(int slot)
+    	{
+    		int next = slot;
+    		
+    		while(true)
+    		{
+    			next = (next + 1) & this._mask;
+    			
+    			if(this._keys[next] == _emptyKey) break;
+    			
+    			int home = home(this._keys[next]);
+    			
+    			//the key can move back if the hole lies between its home and its slot
+    			boolean movable = (next > slot) ? (home <= slot || home > next) : 
+    				(home <= slot && home > next);
+    			
+    			if(movable)
+    			{
+    				this._keys[slot] = this._keys[next];
+    				
+    				this._frames[slot] = this._frames[next];
+    				
+    				slot = next;
+    			}
+    		}
+    		
+    		this._keys[slot] = _emptyKey;
+    		
+    		this._size--;
     	}
     	
     	/*
@@ -536,7 +2284,18 @@ public class VMKernel extends UserKernel {
     	{
     		Lib.assertTrue(Machine.interrupt().disabled());
     		
-    		this._pageTable.remove(processID);
+    		Lib.assertTrue(_pageAccessLock.isHeldByCurrentThread());
+    		
+    		int slot = 0;
+    		
+    		//a removal can shift a later key into the current slot, so recheck it
+    		while(slot < this._keys.length)
+    		{
+    			if(this._keys[slot] != _emptyKey && (int) (this._keys[slot] >>> 32) == processID)
+    				removeSlot(slot);
+    			else
+    				slot++;
+    		}
     	}
     	
     }
@@ -546,51 +2305,226 @@ public class VMKernel extends UserKernel {
      * with the swap file on disk. All the translations, free page frames,
      * calls to the file system, etc, are encapsulated within this data 
      * structure.
+     * 
+     * <p>
+     * Swapped pages are first kept in a compressed swap cache in host
+     * memory, and only spill to the swap file when the cache is full, so
+     * most page-outs and page-ins cost a compression rather than a
+     * simulated disk access. Zero-filled pages take no space at all, and
+     * pages with identical contents share a single page frame. The cache
+     * holds at most <tt>VMKernel.swapCachePages</tt> pages' worth of
+     * compressed data (by default, as much as physical memory); set it to
+     * 0 to send every page to the swap file.
+     * 
+     * <p>
+     * Pages spilled to the swap file are placed next to their neighbors in
+     * the process's address space when possible, and a fault on one of them
+     * reads the neighbors in its cluster of <tt>VMKernel.swapClusterPages</tt>
+     * pages (4 by default) along with it.
+     * 
+     * <p>
+     * The swap file may be striped across <tt>VMKernel.swapStripes</tt>
+     * files (1 by default). Page frames are dealt out to the stripes a
+     * cluster at a time, so a cluster read is still one I/O. Each stripe
+     * has its own lock, and the swap lock is not held during file I/O.
+     * Pages are written out with the kernel's page access lock released,
+     * as they are unmapped and pinned first, so a page-out to one stripe
+     * overlaps other page-outs and a fault's read from another stripe,
+     * rather than every I/O waiting on a single file. A page frame
+     * chosen without a neighbor to sit next to goes to the stripe holding
+     * the fewest pages.
      * @author luke
      *
      */
     private class SwapFileAccess
     {
-    	//swap file to store swapped pages on disk for demand paging
-    	private OpenFile _swapFile;
+    	//swap files to store swapped pages on disk for demand paging, one per stripe
+    	private OpenFile[] _swapFiles;
     	
     	private static final String _swapFileName = "lucos.swp";
     	
+    	private int _numStripes;
+    	
+    	//serializes the I/O to each stripe's file
+    	private Lock[] _stripeLocks;
+    	
+    	//number of page frames in each stripe's file holding a page
+    	private int[] _stripePages;
+    	
     	//keeps track of page frames in the swap file that are no longer
     	//in use and pages from main memory can be "paged out" to
     	private LinkedList<Integer> _freePageFrames;
     	
+    	//number of page frames the swap file has grown to
+    	private int _numPageFrames;
+    	
+    	//number of swap entries (across processes) referring to each page frame
+    	//of the swap file; a forked process shares its parent's page frames
+    	private int[] _pageFrameRefCounts = new int[16];
+    	
+    	//the cached contents of each page frame: compressed bytes, the raw
+    	//page if it didn't compress, _zeroPage, or null if it is in the swap file
+    	private byte[][] _cachedPages = new byte[16][];
+    	
+    	//checksum of the contents of each cached page frame
+    	private long[] _checksums = new long[16];
+    	
+    	//cached page frames by checksum, to find pages with the same contents
+    	private Hashtable<Long, Integer> _cachedPageLookup;
+    	
+    	//marks a page frame holding a zero-filled page
+    	private final byte[] _zeroPage = new byte[0];
+    	
+    	//the shared page frame for zero-filled pages, or -1 if there is none
+    	private int _zeroPageFrame = -1;
+    	
+    	//bytes of compressed data the cache holds, and may hold
+    	private long _cachedBytes, _cacheCapacity;
+    	
+    	//pages are read from the swap file in aligned clusters of this many pages
+    	private int _clusterPages;
+    	
+    	private Deflater _deflater;
+    	
+    	private Inflater _inflater;
+    	
+    	private CRC32 _crc;
+    	
+    	private byte[] _compressBuffer;
+    	
     	//a lookup of page frames and translation for a given process id
     	//nad virtual page number
     	private Hashtable<Integer, Hashtable<Integer, SwapEntry>> _swapLookup;
     	
-    	//protects access to the swap file
+    	//protects the swap lookup, the swap cache and the page frame bookkeeping
     	private Lock _swapLock;    	    
     	
     	public void initialize()
     	{
-        	//set up swap file
+        	this._clusterPages = Math.max(1, Config.getInteger("VMKernel.swapClusterPages", 4));
+        	
+        	this._numStripes = Math.max(1, Config.getInteger("VMKernel.swapStripes", 1));
+        	
+        	//set up swap files
         	FileSystem fileSys = Machine.stubFileSystem();       	        	
         	
-        	//if there's already a swapfile, find it and delete it
-        	OpenFile existingSwap = fileSys.open(_swapFileName, false);
+        	this._swapFiles = new OpenFile[this._numStripes];
+        	
+        	this._stripeLocks = new Lock[this._numStripes];
         	
-        	if(existingSwap != null)
+        	this._stripePages = new int[this._numStripes];
+        	
+        	for(int stripe = 0; stripe < this._numStripes; stripe++)
         	{
-        		existingSwap.close();
-        		
-        		fileSys.remove(_swapFileName);
+	        	//if there's already a swapfile, find it and delete it
+	        	OpenFile existingSwap = fileSys.open(getSwapFileName(stripe), false);
+	        	
+	        	if(existingSwap != null)
+	        	{
+	        		existingSwap.close();
+	        		
+	        		fileSys.remove(getSwapFileName(stripe));
+	        	}
+	        	
+	        	this._swapFiles[stripe] = fileSys.open(getSwapFileName(stripe), true); 
+	        	
+	        	this._stripeLocks[stripe] = new nachos.threads.Lock();
         	}
         	
-        	this._swapFile = fileSys.open(_swapFileName, true); 
-        	
         	this._freePageFrames = new LinkedList<Integer>();
         	
         	this._swapLookup = new Hashtable<Integer, Hashtable<Integer, SwapEntry>>();
         	
         	this._swapLock = new nachos.threads.Lock();      	        	       	        	
+        	
+        	//set up the compressed swap cache
+        	this._cacheCapacity = (long) Processor.pageSize * Config.getInteger(
+        			"VMKernel.swapCachePages", Machine.processor().getNumPhysPages());
+        	
+        	this._cachedPageLookup = new Hashtable<Long, Integer>();
+        	
+        	this._deflater = new Deflater(Deflater.BEST_SPEED);
+        	
+        	this._inflater = new Inflater();
+        	
+        	this._crc = new CRC32();
+        	
+        	this._compressBuffer = new byte[Processor.pageSize];
     	}    	 
     	
+    	private String getSwapFileName(int stripe)
+    	{
+    		return (stripe == 0) ? _swapFileName : _swapFileName + stripe;
+    	}
+    	
+    	/*
+    	 * Returns the stripe holding a page frame. Page frames are striped a
+    	 * cluster at a time.
+    	 */
+    	private int getStripe(int pageFrame)
+    	{
+    		return (pageFrame / this._clusterPages) % this._numStripes;
+    	}
+    	
+    	/*
+    	 * Returns the byte offset of a page frame in its stripe's file.
+    	 */
+    	private int getStripeOffset(int pageFrame)
+    	{
+    		int cluster = pageFrame / this._clusterPages;
+    		
+    		return ((cluster / this._numStripes) * this._clusterPages + pageFrame % this._clusterPages) 
+    				* Processor.pageSize;
+    	}
+    	
+    	/*
+    	 * Reads or writes a run of page frames, which must all lie in one
+    	 * stripe. The swap lock is released while the stripe's lock is held
+    	 * for the I/O, and the page frames are pinned so they can't be
+    	 * released and reused meanwhile.
+    	 * 
+    	 * Returns the number of bytes transferred.
+    	 */
+    	private int transfer(int pageFrame, byte[] data, int offset, int length, boolean write)
+    	{
+    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		
+    		int numFrames = length / Processor.pageSize;
+    		
+    		int stripe = getStripe(pageFrame);
+    		
+    		Lib.assertTrue(getStripe(pageFrame + numFrames - 1) == stripe);
+    		
+    		for(int i = 0; i < numFrames; i++) this._pageFrameRefCounts[pageFrame + i]++;
+    		
+    		this._swapLock.release();
+    		
+    		int bytesTransferred;
+    		
+    		try
+    		{
+    			this._stripeLocks[stripe].acquire();
+    			
+    			Lib.debug('s', (write ? "Writing " : "Reading ") + numFrames + 
+    					" page frames at " + pageFrame + " (stripe " + stripe + ")");
+    			
+    			if(write)
+    				bytesTransferred = this._swapFiles[stripe].write(getStripeOffset(pageFrame), data, offset, length);
+    			else
+    				bytesTransferred = this._swapFiles[stripe].read(getStripeOffset(pageFrame), data, offset, length);
+    		}
+    		finally
+    		{
+    			this._stripeLocks[stripe].release();
+    			
+    			this._swapLock.acquire();
+    		}
+    		
+    		for(int i = 0; i < numFrames; i++) releasePageFrame(pageFrame + i);
+    		
+    		return bytesTransferred;
+    	}
+    	
     	/**
     	 * Looks up the page in the swap file for the given process id and
     	 * virtual page number. Loads the page into main memory, and returns
@@ -598,10 +2532,14 @@ public class VMKernel extends UserKernel {
     	 * 
     	 * @param pid process ID
     	 * @param vpn virtual page number
-    	 * @param targetFrame frame of main memory to load into
+    	 * @param targetPPN physical page of main memory to load into
+    	 * @param readAround receives the translations of neighboring pages
+    	 * read in the same I/O, each in a pinned frame; null to read the
+    	 * page alone
     	 * @return
     	 */
-    	public TranslationEntry loadPage(int pid, int vpn, PageFrame targetFrame)
+    	public TranslationEntry loadPage(int pid, int vpn, int targetPPN, 
+    			LinkedList<TranslationEntry> readAround)
     	{
     		Lib.debug('s', "Attempting to load from swap (PID " + pid + " VPN " + vpn + ")");
     		
@@ -639,7 +2577,7 @@ public class VMKernel extends UserKernel {
 	    			+ pid + " VPN " + vpn + ")");	    				    			    		
 	    		
 	    		//load the entry, get the translation
-	    		translation = load(pid, entry, targetFrame);    	
+	    		translation = load(pid, entry, targetPPN, processSwapLookup, readAround);    	
     		}
     		finally
     		{   			   			    			    		    			
@@ -658,40 +2596,125 @@ public class VMKernel extends UserKernel {
     	}
     	
     	/**
-    	 * Loads page retrieved from swap file into memory.
+    	 * Loads page retrieved from swap file into memory. A page that has
+    	 * to be read from the swap file brings in the process's neighboring
+    	 * pages in the same cluster with it, as long as they follow it in the
+    	 * file, aren't resident, and there are free frames to spare. They are
+    	 * read with one I/O and returned as unreferenced pages, so that the
+    	 * replacement policy reclaims them first if they are never used.
     	 * @param entry
     	 */
-    	private TranslationEntry load(int pid, SwapEntry entry, PageFrame targetFrame)
+    	private TranslationEntry load(int pid, SwapEntry entry, int ppn, 
+    			Hashtable<Integer, SwapEntry> processSwapLookup, 
+    			LinkedList<TranslationEntry> readAround)
     	{
     		if(entry == null || entry.translation == null) return null;    		    	
     		
-    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		
+    		//get main memory from the processor
+    		byte[] memory = Machine.processor().getMemory();
+    		
+    		//validate physical page number
+    		if (ppn < 0 || ppn >= Machine.processor().getNumPhysPages())
+    		    return null;    		 
+    		
+    		int paddr = ppn * Processor.pageSize;
+    		
+    		int vpn = entry.translation.vpn;
+    		
+    		byte[] cachedPage = this._cachedPages[entry.pageFrameIndex];
+    		
+    		if(cachedPage != null)
+    		{
+    			//a swap cache hit costs a decompression, not a disk access
+    			if(!uncompress(cachedPage, memory, paddr)) return null;
+    			
+    			return new TranslationEntry(vpn, ppn, true, 
+        				entry.translation.readOnly,false, false);
+    		}
+    		
+    		//find the run of pages around this one that can be read with it
+    		int clusterStart = vpn - vpn % this._clusterPages;
+    		
+    		int spareFrames = (readAround == null) ? 0 : freeMemoryAvailable();
+    		
+    		int first = vpn, last = vpn;
+    		
+    		while(spareFrames > 0 && first > clusterStart && 
+    				canReadAround(pid, processSwapLookup, first - 1, entry.pageFrameIndex - (vpn - first + 1), 
+    						entry.pageFrameIndex))
+    		{
+    			first--;
+    			
+    			spareFrames--;
+    		}
+    		
+    		while(spareFrames > 0 && last < clusterStart + this._clusterPages - 1 && 
+    				canReadAround(pid, processSwapLookup, last + 1, entry.pageFrameIndex + (last + 1 - vpn), 
+    						entry.pageFrameIndex))
+    		{
+    			last++;
+    			
+    			spareFrames--;
+    		}
     		
-    	    //get page to load from the swap file
-    	    byte[] pageToLoad = new byte[Machine.processor().pageSize];    	    
+    	    //get the pages to load from the swap file
+    	    byte[] pagesToLoad = new byte[(last - first + 1) * Processor.pageSize];    	    
     
-    	    int bytesRead = _swapFile.read(entry.pageFrameIndex, 
-    				pageToLoad, 0, pageToLoad.length);
+    	    int bytesRead = transfer(entry.pageFrameIndex - (vpn - first), 
+    				pagesToLoad, 0, pagesToLoad.length, false);
     	    
     	    //check to make sure the read from swap was successful
-    	    if(bytesRead != Machine.processor().pageSize) return null;			    	    
+    	    if(bytesRead != pagesToLoad.length) return null;			    	    
+    	    
+    	    //segment pages are charged to the process that faulted them in
+    	    if(pid >= 0) getProcessStats(pid).numSwapReads++;
 			    		
-    		//get main memory from the processor
-    		byte[] memory = Machine.processor().getMemory();
-    		
-    		int ppn = targetFrame.startIndex / Machine.processor().pageSize;
-    		
-    		//validate physical page number
-    		if (ppn < 0 || ppn + Machine.processor().pageSize >= memory.length)
-    		    return null;    		 
-    		
     	    //load page from swap into main memory		
-    	    System.arraycopy(pageToLoad, 0, memory, ppn, Machine.processor().pageSize);    	        	    		
+    	    System.arraycopy(pagesToLoad, (vpn - first) * Processor.pageSize, memory, paddr, 
+    	    		Processor.pageSize);    	        	    		
+    	    
+    	    for(int neighbor = first; neighbor <= last; neighbor++)
+    	    {
+    	    	if(neighbor == vpn) continue;
+    	    	
+    	    	int neighborPPN = allocateFrame();
+    	    	
+    	    	if(neighborPPN < 0) break;
+    	    	
+    	    	setPageInUse(neighborPPN);
+    	    	
+    	    	System.arraycopy(pagesToLoad, (neighbor - first) * Processor.pageSize, memory, 
+    	    			neighborPPN * Processor.pageSize, Processor.pageSize);
+    	    	
+    	    	readAround.add(new TranslationEntry(neighbor, neighborPPN, true, 
+    	    			processSwapLookup.get(neighbor).translation.readOnly, false, false));
+    	    }
     	        	    
-    		return new TranslationEntry(entry.translation.vpn, ppn, true, 
+    		return new TranslationEntry(vpn, ppn, true, 
     				entry.translation.readOnly,false, false);
     	}
     	
+    	/*
+    	 * Returns true if a page is in the given page frame of the swap file,
+    	 * in the same stripe cluster as the faulting page's frame, not in the
+    	 * swap cache, not resident, and not on its way out to swap.
+    	 */
+    	private boolean canReadAround(int pid, Hashtable<Integer, SwapEntry> processSwapLookup, 
+    			int vpn, int pageFrame, int faultPageFrame)
+    	{
+    		SwapEntry entry = processSwapLookup.get(vpn);
+    		
+    		//with more than one stripe, the next cluster of page frames is in another file
+    		if(this._numStripes > 1 && pageFrame / this._clusterPages != faultPageFrame / this._clusterPages)
+    			return false;
+    		
+    		return entry != null && pageFrame >= 0 && entry.pageFrameIndex == pageFrame &&
+    				this._cachedPages[pageFrame] == null && _globalPageTable.get(pid, vpn, false) == null &&
+    				!_pagesOut.contains(getPageOutKey(pid, vpn));
+    	}
+    	
     	/**
     	 * Writes page from main memory to swap file.
     	 * @return
@@ -732,12 +2755,34 @@ public class VMKernel extends UserKernel {
 
 	    		//if it doesn't exist, create a new one
 		    	if(swapEntry == null) swapEntry = new SwapEntry(-1, entry);
+		    	
+		    	//the page may have been swapped in to a different frame since
+		    	swapEntry.translation = entry;
+	    		
+		    	int oldPageFrame = swapEntry.pageFrameIndex;
+		    	
+		    	//lay out pages spilled to the file in virtual page order, so
+		    	//they can be read back in clusters
+		    	SwapEntry previous = processSwapLookup.get(entry.vpn - 1);
+		    	
+		    	SwapEntry next = processSwapLookup.get(entry.vpn + 1);
+		    	
+		    	int preferredPageFrame = previous != null ? previous.pageFrameIndex + 1 : 
+		    		next != null ? next.pageFrameIndex - 1 : -1;
+		    	
+		    	//store the new contents in the cache, or in a page frame of the swap file
+	    		swapEntry.pageFrameIndex = storePage(entry.ppn, preferredPageFrame);
 	    		
-		    	//write the page to swap
-	    		success = writeToSwap(swapEntry);   		
+	    		success = swapEntry.pageFrameIndex >= 0;
 	    		
 	    		Lib.assertTrue(success);
 	    		
+	    		//pages stored in the swap cache never reach the file
+	    		if(pid >= 0 && this._cachedPages[swapEntry.pageFrameIndex] == null) getProcessStats(pid).numSwapWrites++;
+	    		
+	    		//release the old copy last, in case the new one is a duplicate of it
+	    		if(oldPageFrame >= 0) releasePageFrame(oldPageFrame);
+	    		
 	    		Lib.debug('s', "Write to swap " + (success ? "" : "un") + 
 	    				"successful (PID " + pid + " VPN " + entry.vpn + ")");
 	    		
@@ -756,49 +2801,428 @@ public class VMKernel extends UserKernel {
     		return success;
     	}
     	
-    	private boolean writeToSwap(SwapEntry swapEntry)
+    	/**
+    	 * Stores the page in the given frame of main memory, and returns the
+    	 * page frame that now holds it. A zero-filled page, or a page with the
+    	 * same contents as one already cached, gets a reference to the
+    	 * existing page frame. Otherwise the page is compressed into the swap
+    	 * cache, or written to the swap file if the cache is full, in the
+    	 * preferred page frame if it is free. The page must have been
+    	 * unmapped, so that no process can write to it while it is stored.
+    	 * 
+    	 * @return the page frame, or -1 if the page could not be written
+    	 */
+    	private int storePage(int ppn, int preferredPageFrame)
     	{
     		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
     		
-    		if(swapEntry == null || swapEntry.translation == null) return false;
-    		
     		//get main memory from the processor
     		byte[] memory = Machine.processor().getMemory();
     		
-    		int ppn = swapEntry.translation.ppn;
-    		
     		//validate physical page number
-    		if (ppn < 0 || ppn >= memory.length)
-    		    return false;    		 
+    		if (ppn < 0 || ppn >= Machine.processor().getNumPhysPages())
+    		    return -1;    		 
     		
-    		//get page to be written from main memory
-    		byte[] pageToWrite = new byte[Machine.processor().pageSize];
-    		    		
-    		System.arraycopy(memory, ppn * Machine.processor().pageSize, 
-    				pageToWrite, 0, Machine.processor().pageSize);
+    		Lib.assertTrue(_globalCoreMap[ppn] == null, "Error storing page: frame is still mapped");
     		
-    		int bytesWritten;    		    			    									
+    		int paddr = ppn * Processor.pageSize;
+    		
+    		if(isZeroPage(memory, paddr))
+    		{
+    			if(this._zeroPageFrame >= 0)
+    			{
+    				this._pageFrameRefCounts[this._zeroPageFrame]++;
+    			}
+    			else
+    			{
+    				this._zeroPageFrame = allocatePageFrame();
+    				
+    				this._cachedPages[this._zeroPageFrame] = this._zeroPage;
+    			}
     			
-	    	swapEntry.pageFrameIndex = swapEntry.pageFrameIndex >= 0 ? 
-	    		swapEntry.pageFrameIndex : Math.max(_swapFile.length(), 0);
-	    				
-	    		//write page to swap
-	    	bytesWritten = _swapFile.write(swapEntry.pageFrameIndex, 
-	    		pageToWrite, 0, pageToWrite.length);
-    		    		
-    		return bytesWritten == Machine.processor().pageSize;
+    			return this._zeroPageFrame;
+    		}
+    		
+    		byte[] page = compress(memory, paddr);
+    		
+    		this._crc.reset();
+    		
+    		this._crc.update(memory, paddr, Processor.pageSize);
+    		
+    		long checksum = this._crc.getValue();
+    		
+    		//compression is deterministic, so equal pages compress to equal bytes
+    		Integer duplicate = this._cachedPageLookup.get(checksum);
+    		
+    		if(duplicate != null && Arrays.equals(this._cachedPages[duplicate], page))
+    		{
+    			this._pageFrameRefCounts[duplicate]++;
+    			
+    			return duplicate;
+    		}
+    		
+    		if(this._cachedBytes + page.length <= this._cacheCapacity)
+    		{
+    			int pageFrame = allocatePageFrame();
+    			
+    			this._cachedPages[pageFrame] = page;
+    			
+    			this._checksums[pageFrame] = checksum;
+    			
+    			this._cachedPageLookup.put(checksum, pageFrame);
+    			
+    			this._cachedBytes += page.length;
+    			
+    			return pageFrame;
+    		}
+    		
+    		//the cache is full - spill the page to the swap file
+    		int pageFrame = allocateFilePageFrame(preferredPageFrame);
+    		
+    		this._stripePages[getStripe(pageFrame)]++;
+    		
+    		//the page was unmapped before the copy is taken, so the copy holds
+    		//its final contents; the write goes from the copy
+    		byte[] contents = Arrays.copyOfRange(memory, paddr, paddr + Processor.pageSize);
+    		
+	    	int bytesWritten = transfer(pageFrame, contents, 0, Processor.pageSize, true);
+	    	
+	    	if(bytesWritten != Processor.pageSize)
+	    	{
+	    		releasePageFrame(pageFrame);
+	    		
+	    		return -1;
+	    	}
+	    	
+	    	return pageFrame;
+    	}
+    	
+    	private boolean isZeroPage(byte[] memory, int paddr)
+    	{
+    		for(int i = paddr; i < paddr + Processor.pageSize; i++)
+    		{
+    			if(memory[i] != 0) return false;
+    		}
+    		
+    		return true;
+    	}
+    	
+    	/*
+    	 * Compresses a page of memory. A page that doesn't shrink is
+    	 * returned as a raw copy, so a cached page is raw exactly when it
+    	 * is a whole page long.
+    	 */
+    	private byte[] compress(byte[] memory, int paddr)
+    	{
+    		this._deflater.reset();
+    		
+    		this._deflater.setInput(memory, paddr, Processor.pageSize);
+    		
+    		this._deflater.finish();
+    		
+    		int length = this._deflater.deflate(this._compressBuffer);
+    		
+    		//compressed data filling the whole page would be taken for a raw page
+    		if(!this._deflater.finished() || length >= Processor.pageSize) 
+    			return Arrays.copyOfRange(memory, paddr, paddr + Processor.pageSize);
+    		
+    		return Arrays.copyOf(this._compressBuffer, length);
+    	}
+    	
+    	/*
+    	 * Restores a cached page into a page of memory.
+    	 */
+    	private boolean uncompress(byte[] cachedPage, byte[] memory, int paddr)
+    	{
+    		if(cachedPage == this._zeroPage)
+    		{
+    			Arrays.fill(memory, paddr, paddr + Processor.pageSize, (byte) 0);
+    			
+    			return true;
+    		}
+    		
+    		if(cachedPage.length == Processor.pageSize)
+    		{
+    			System.arraycopy(cachedPage, 0, memory, paddr, Processor.pageSize);
+    			
+    			return true;
+    		}
+    		
+    		this._inflater.reset();
+    		
+    		this._inflater.setInput(cachedPage);
+    		
+    		try
+    		{
+    			return this._inflater.inflate(memory, paddr, Processor.pageSize) == Processor.pageSize;
+    		}
+    		catch(DataFormatException e)
+    		{
+    			return false;
+    		}
+    	}
+    	
+    	/**
+    	 * Returns true if the swap file holds a copy of the given page.
+    	 */
+    	public boolean contains(int pid, int vpn)
+    	{
+    		try
+    		{
+    			this._swapLock.acquire();
+    			
+    			Hashtable<Integer, SwapEntry> processSwapLookup = this._swapLookup.get(pid);
+    			
+    			return processSwapLookup != null && processSwapLookup.containsKey(vpn);
+    		}
+    		finally
+    		{
+    			this._swapLock.release();
+    		}
+    	}
+    	
+    	/**
+    	 * Returns true if the given page is held in the swap cache (or is a
+    	 * zero page), so loading it won't read the swap file.
+    	 */
+    	public boolean isCached(int pid, int vpn)
+    	{
+    		try
+    		{
+    			this._swapLock.acquire();
+    			
+    			Hashtable<Integer, SwapEntry> processSwapLookup = this._swapLookup.get(pid);
+    			
+    			SwapEntry entry = (processSwapLookup == null) ? null : processSwapLookup.get(vpn);
+    			
+    			return entry != null && this._cachedPages[entry.pageFrameIndex] != null;
+    		}
+    		finally
+    		{
+    			this._swapLock.release();
+    		}
+    	}
+    	
+    	/**
+    	 * Returns a free page frame of the swap file, reusing frames that
+    	 * have been released before growing the file.
+    	 */
+    	private int allocatePageFrame()
+    	{
+    		return allocatePageFrame(-1);
+    	}
+    	
+    	/**
+    	 * Returns the preferred page frame of the swap file if it is free or
+    	 * just past the end of the file, and otherwise any free page frame.
+    	 */
+    	private int allocatePageFrame(int preferredPageFrame)
+    	{
+    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		
+    		int pageFrame;
+    		
+    		if(preferredPageFrame >= 0 && preferredPageFrame < this._numPageFrames && 
+    				this._pageFrameRefCounts[preferredPageFrame] == 0)
+    		{
+    			this._freePageFrames.remove(Integer.valueOf(preferredPageFrame));
+    			
+    			pageFrame = preferredPageFrame;
+    		}
+    		else if(!this._freePageFrames.isEmpty() && preferredPageFrame != this._numPageFrames)
+    		{
+    			pageFrame = this._freePageFrames.removeFirst();
+    		}
+    		else
+    		{
+    			pageFrame = this._numPageFrames++;
+    			
+    			if(pageFrame == this._pageFrameRefCounts.length)
+    			{
+    				this._pageFrameRefCounts = Arrays.copyOf(this._pageFrameRefCounts, 2*pageFrame);
+    				
+    				this._cachedPages = Arrays.copyOf(this._cachedPages, 2*pageFrame);
+    				
+    				this._checksums = Arrays.copyOf(this._checksums, 2*pageFrame);
+    			}
+    		}
+    		
+    		this._pageFrameRefCounts[pageFrame] = 1;
+    		
+    		return pageFrame;
+    	}
+    	
+    	/**
+    	 * Returns a page frame of the swap file for a page spilled from the
+    	 * swap cache. The preferred page frame is used if it is free, or just
+    	 * past the end of the file. Otherwise, with more than one stripe, a
+    	 * free page frame in the stripe holding the fewest pages is used if
+    	 * there is one.
+    	 */
+    	private int allocateFilePageFrame(int preferredPageFrame)
+    	{
+    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		
+    		boolean preferredFree = preferredPageFrame >= 0 && (preferredPageFrame == this._numPageFrames || 
+    				(preferredPageFrame < this._numPageFrames && this._pageFrameRefCounts[preferredPageFrame] == 0));
+    		
+    		if(this._numStripes == 1 || preferredFree) return allocatePageFrame(preferredPageFrame);
+    		
+    		int emptiest = 0;
+    		
+    		for(int stripe = 1; stripe < this._numStripes; stripe++)
+    		{
+    			if(this._stripePages[stripe] < this._stripePages[emptiest]) emptiest = stripe;
+    		}
+    		
+    		for(int pageFrame : this._freePageFrames)
+    		{
+    			if(getStripe(pageFrame) == emptiest) return allocatePageFrame(pageFrame);
+    		}
+    		
+    		return allocatePageFrame(preferredPageFrame);
+    	}
+    	
+    	/**
+    	 * Drops a reference to a page frame of the swap file, returning it to
+    	 * the free pool, and its cached copy to the swap cache, if no other
+    	 * swap entries refer to it.
+    	 */
+    	private void releasePageFrame(int pageFrame)
+    	{
+    		Lib.assertTrue(this._swapLock.isHeldByCurrentThread());
+    		
+    		if(--this._pageFrameRefCounts[pageFrame] > 0) return;
+    		
+    		byte[] cachedPage = this._cachedPages[pageFrame];
+    		
+    		if(cachedPage == this._zeroPage)
+    		{
+    			this._zeroPageFrame = -1;
+    		}
+    		else if(cachedPage != null)
+    		{
+    			this._cachedBytes -= cachedPage.length;
+    			
+    			Integer lookup = this._cachedPageLookup.get(this._checksums[pageFrame]);
+    			
+    			if(lookup != null && lookup == pageFrame) this._cachedPageLookup.remove(this._checksums[pageFrame]);
+    		}
+    		else
+    		{
+    			this._stripePages[getStripe(pageFrame)]--;
+    		}
+    		
+    		this._cachedPages[pageFrame] = null;
+    		
+    		this._freePageFrames.add(pageFrame);
+    	}
+    	
+    	/**
+    	 * Gives a forked child process references to all of its parent's
+    	 * pages in the swap file.
+    	 */
+    	public void duplicateProcess(int parentID, int childID)
+    	{
+    		try
+    		{
+    			this._swapLock.acquire();
+    			
+    			Hashtable<Integer, SwapEntry> parentSwapLookup = this._swapLookup.get(parentID);
+    			
+    			if(parentSwapLookup == null) return;
+    			
+    			Hashtable<Integer, SwapEntry> childSwapLookup = new Hashtable<Integer, SwapEntry>();
+    			
+    			for(SwapEntry entry : parentSwapLookup.values())
+    			{
+    				childSwapLookup.put(entry.translation.vpn, 
+    						new SwapEntry(entry.pageFrameIndex, entry.translation));
+    				
+    				this._pageFrameRefCounts[entry.pageFrameIndex]++;
+    			}
+    			
+    			this._swapLookup.put(childID, childSwapLookup);
+    		}
+    		finally
+    		{
+    			this._swapLock.release();
+    		}
     	}
     	
+    	/**
+    	 * Makes a process's swap copy of a page refer to another process's
+    	 * copy, which was just written.
+    	 */
+    	public void share(int fromID, int toID, int vpn)
+    	{
+    		try
+    		{
+    			this._swapLock.acquire();
+    			
+    			SwapEntry from = this._swapLookup.get(fromID).get(vpn);
+    			
+    			Hashtable<Integer, SwapEntry> toSwapLookup = this._swapLookup.get(toID);
+    			
+    			if(toSwapLookup == null)
+    			{
+    				toSwapLookup = new Hashtable<Integer, SwapEntry>();
+    				
+    				this._swapLookup.put(toID, toSwapLookup);
+    			}
+    			
+    			SwapEntry old = toSwapLookup.put(vpn, new SwapEntry(from.pageFrameIndex, from.translation));
+    			
+    			this._pageFrameRefCounts[from.pageFrameIndex]++;
+    			
+    			if(old != null && old.pageFrameIndex >= 0) releasePageFrame(old.pageFrameIndex);
+    		}
+    		finally
+    		{
+    			this._swapLock.release();
+    		}
+    	}
     	
+    	/**
+    	 * Forgets every page a process has in the swap file and returns
+    	 * their page frames to the free pool.
+    	 */
+    	public void removeProcess(int pid)
+    	{
+    		try
+    		{
+    			this._swapLock.acquire();
+    			
+    			Hashtable<Integer, SwapEntry> processSwapLookup = this._swapLookup.remove(pid);
+    			
+    			if(processSwapLookup == null) return;
+    			
+    			for(SwapEntry entry : processSwapLookup.values())
+    			{
+    				if(entry.pageFrameIndex >= 0) releasePageFrame(entry.pageFrameIndex);
+    			}
+    		}
+    		finally
+    		{
+    			this._swapLock.release();
+    		}
+    	}
     	
     	public void terminate()
     	{
+    		this._deflater.end();
+    		
+    		this._inflater.end();
+    		
         	//delete swap file from disk
         	FileSystem fileSys = Machine.stubFileSystem();
         	
-        	if(_swapFile != null) _swapFile.close();
-        	
-        	fileSys.remove(_swapFileName);
+        	for(int stripe = 0; stripe < this._numStripes; stripe++)
+        	{
+	        	if(_swapFiles[stripe] != null) _swapFiles[stripe].close();
+	        	
+	        	fileSys.remove(getSwapFileName(stripe));
+        	}
     	}
     	
     	private class SwapEntry
@@ -1,6 +1,7 @@
 package nachos.vm;
 
-import java.util.concurrent.ThreadLocalRandom;
+import java.io.EOFException;
+import java.util.LinkedList;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -31,10 +32,70 @@ public class VMProcess extends UserProcess {
     	
     	((UserKernel)Kernel.kernel).printPagesInUse('s');
     	
+    	saveTLBEntries();
+    	
     	invalidateTLBEntries();
     	
     	super.saveState();
     }
+    
+    /**
+     * Copies the TLB into this process's shadow TLB before it is flushed for
+     * a context switch, so the entries can be reloaded when the process next
+     * runs instead of being faulted back in one miss at a time.
+     */
+    private void saveTLBEntries()
+    {
+    	Processor processor = Machine.processor();
+    	
+    	if(this._shadowTLB == null) this._shadowTLB = new TranslationEntry[processor.getTLBSize()];
+    	
+    	//fold the cached bits into the kernel's translations first
+    	((VMKernel)Kernel.kernel).syncTLBEntries();
+    	
+    	for(int i = 0; i < this._shadowTLB.length; i++)
+    	{
+    		this._shadowTLB[i] = processor.readTLBEntry(i);
+    	}
+    }
+    
+    /**
+     * Reloads the TLB from this process's shadow TLB. A saved entry is only
+     * reloaded if the kernel still maps the page to the same frame, since
+     * the page may have been evicted, or copied on write, while the process
+     * was switched out. Nor is it reloaded if the frame is pinned, since
+     * the page may be on its way out to swap or still being filled. The
+     * reloaded entry takes its protection from the kernel's translation and
+     * starts unreferenced and clean; the bits are folded into the kernel's
+     * translation again when it leaves the TLB.
+     */
+    private void restoreTLBEntries()
+    {
+    	if(this._shadowTLB == null) return;
+    	
+    	Processor processor = Machine.processor();
+    	
+    	VMKernel kernel = (VMKernel) Kernel.kernel;
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	for(int i = 0; i < this._shadowTLB.length; i++)
+    	{
+    		TranslationEntry saved = this._shadowTLB[i];
+    		
+    		if(saved == null || !saved.valid) continue;
+    		
+    		//interrupts are disabled, so the page table can be read without its lock
+    		TranslationEntry entry = kernel.getTranslation(this.processID, saved.vpn, false, false);
+    		
+    		if(entry == null || entry.ppn != saved.ppn || kernel.pageInUse(entry.ppn)) continue;
+    		
+    		processor.writeTLBEntry(i, new TranslationEntry(entry.vpn, entry.ppn, 
+    				true, entry.readOnly, false, false));
+    	}
+    	
+    	Machine.interrupt().restore(intStatus);
+    }
 
     /**
      * Invalidates TLB entries before context switch.
@@ -47,6 +108,9 @@ public class VMProcess extends UserProcess {
     	
     	((UserKernel)Kernel.kernel).printPagesInUse('s');
     	
+    	//keep the reference bits gathered while the entries were cached
+    	((VMKernel)Kernel.kernel).syncTLBEntries();
+    	
     	Processor processor = Machine.processor();
     	
     	for(int i = 0; i < processor.getTLBSize(); i++)
@@ -72,6 +136,8 @@ public class VMProcess extends UserProcess {
     	Lib.debug('s', "Restoring context (PID " + this.processID + ")");
     	
     	currentProcess = this;
+    	
+    	restoreTLBEntries();
     }
 
     
@@ -84,7 +150,7 @@ public class VMProcess extends UserProcess {
     	
 		for (int i=0; i<this.numPages; i++)
 		{
-			int physPageNum = this.physMemPages[i].endIndex / pageSize;								
+			int physPageNum = this.physMemPages[i];								
 			
 			kernel.putTranslation(this.processID,
 					new TranslationEntry(i,physPageNum, true,false,false,false));
@@ -95,7 +161,9 @@ public class VMProcess extends UserProcess {
     
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No pages are loaded here: code and data pages are read
+     * from the executable the first time they are touched, and .bss and
+     * stack pages are zero-filled on first touch.
      *
      * @return	<tt>true</tt> if successful.
      */
@@ -110,49 +178,13 @@ public class VMProcess extends UserProcess {
     	//if swap file doesn't yet exist, initialize it
     	if(!kernel.swapExists()) kernel.initializeSwapFileAccess();
     	
-    	// load sections
     	for (int s=0; s<coff.getNumSections(); s++) {
     	    CoffSection section = coff.getSection(s);
     	    
-    	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+    	    Lib.debug(dbgProcess, "\tmapping " + section.getName()
     		      + " section (" + section.getLength() + " pages)");
-
-    	    for (int i=0; i<section.getLength(); i++) {
-    		
-    	    	Lib.debug('s', "Loading page " + i + " of " + section.getLength() +
-    	    			", section " + s + " of " + coff.getNumSections() + "(PID " + 
-    	    			this.processID + ")");
-    	    	
-    	    	Lib.debug('s', "Num free mem pages in kernel: " + 
-    	    			kernel.freeMemoryAvailable() + " (PID " + this.processID + ")");
-    	    	
-    	    	int vpn = section.getFirstVPN()+i;	
-    	    	
-    			TranslationEntry entry = kernel.newPage(this.processID, vpn, true, section.isReadOnly(),
-    					false, false);
-
-    			section.loadPage(i, entry.ppn);    		
-    			
-    			//load complete - set page to not in use
-    			kernel.setPageNotInUseAndLock(entry.ppn);
-    			
-    			Lib.debug('s', "Finished loading page " + i + " of " + section.getLength() +
-    	    			", section " + s + " of " + coff.getNumSections() + "(PID " + 
-    	    			this.processID + ")");
-    			
-    			Lib.debug('s', "Num free mem pages in kernel: " + 
-    	    			kernel.freeMemoryAvailable() + " (PID " + this.processID + ")");
-    			
-    			kernel.printPagesInUse('s');
-    	    }
     	}
     	
-    	//allocate first page for stack
-    	TranslationEntry stackEntry = kernel.newPage(this.processID, 
-    			this.getInitialSP() / pageSize, true, false, false, false);
-    	
-    	kernel.setPageNotInUseAndLock(stackEntry.ppn);
-    	
     	return true;    	
     }
  
@@ -163,25 +195,218 @@ public class VMProcess extends UserProcess {
     @Override
     protected void deallocateMemory()
     {
-    	Machine.interrupt().disable();
+    	boolean intStatus = Machine.interrupt().disable();
     	
     	Lib.debug('s', "Process deallocating memory...");
     	
     	//invalidate TLB cache
     	invalidateTLBEntries();
     	
+    	//write back the files still mapped before their frames are released
+    	while(!this._memoryMaps.isEmpty()) unmapFile(this._memoryMaps.getFirst());
+    	
     	//return physical memory, page table entries, swap entries in use    	   
-    	//((VMKernel)Kernel.kernel).deallocateProcessMemory(this.processID);
+    	((VMKernel)Kernel.kernel).deallocateProcessMemory(this.processID);
+    	
+    	unloadSections();
     	
-    	Machine.interrupt().enable();
+    	Machine.interrupt().restore(intStatus);
     }
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>. Closes
+     * the executable, which is kept open for demand paging.
      */
     protected void unloadSections() {
 	super.unloadSections();
+	
+	if(coff != null) coff.close();
+	
+	coff = null;
     }    
 
+    /**
+     * Shares the parent's address space with this newly forked process.
+     * Writable pages are shared copy-on-write, so nothing is copied until
+     * one of the processes writes to a page.
+     */
+    @Override
+    protected boolean copyAddressSpace(UserProcess parent)
+    {
+    	//reopen the executable so that untouched pages can still be demand-loaded
+    	OpenFile executable = ThreadedKernel.fileSystem.open(this.executableName, false);
+    	
+    	if(executable == null) return false;
+    	
+    	try
+    	{
+    		coff = new Coff(executable);
+    	}
+    	catch (EOFException e)
+    	{
+    		executable.close();
+    		
+    		return false;
+    	}
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	//the parent's TLB holds writable copies of pages about to become read-only
+    	invalidateTLBEntries();
+    	
+    	((VMKernel)Kernel.kernel).forkAddressSpace(parent.getProcessID(), this.processID);
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return true;
+    }
+    
+    /**
+     * Maps a file into the first run of unused virtual pages above the
+     * stack and arguments that is long enough to hold it. No pages are read
+     * here; each is read from the file when first touched.
+     */
+    @Override
+    protected int mapFile(FileDescriptor descriptor, int length)
+    {
+    	int numMapPages = (int) (((long) length + pageSize - 1) / pageSize);
+    	
+    	int firstVPN = this.numPages;
+    	
+    	//move past every map the candidate run overlaps until it fits
+    	for(boolean moved = true; moved; )
+    	{
+    		moved = false;
+    		
+    		for(MemoryMap map : this._memoryMaps)
+    		{
+    			if(firstVPN < map.firstVPN + map.numPages && map.firstVPN < firstVPN + numMapPages)
+    			{
+    				firstVPN = map.firstVPN + map.numPages;
+    				
+    				moved = true;
+    			}
+    		}
+    	}
+    	
+    	//maps must stay below the shared memory segments
+    	if((long) firstVPN + numMapPages > VMKernel.segmentBaseVPN) return -1;
+    	
+    	descriptor.share();
+    	
+    	this._memoryMaps.add(new MemoryMap(descriptor, firstVPN, numMapPages, length));
+    	
+    	Lib.debug('s', "Mapped file " + descriptor.getFile().getName() + " (PID " + 
+    			this.processID + " VPN " + firstVPN + " pages " + numMapPages + ")");
+    	
+    	return firstVPN * pageSize;
+    }
+    
+    @Override
+    protected boolean unmapFile(int vaddr)
+    {
+    	for(MemoryMap map : this._memoryMaps)
+    	{
+    		if(map.firstVPN * pageSize != vaddr) continue;
+    		
+    		boolean intStatus = Machine.interrupt().disable();
+    		
+    		unmapFile(map);
+    		
+    		Machine.interrupt().restore(intStatus);
+    		
+    		return true;
+    	}
+    	
+    	return false;
+    }
+    
+    private void unmapFile(MemoryMap map)
+    {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+    	
+    	this._memoryMaps.remove(map);
+    	
+    	((VMKernel)Kernel.kernel).unmapFilePages(this.processID, map.firstVPN, map.numPages);
+    	
+    	map.descriptor.close();
+    }
+    
+    @Override
+    protected int attachSegment(String name, int size)
+    {
+    	int firstVPN = ((VMKernel)Kernel.kernel).attachSegment(this.processID, name, size);
+    	
+    	return firstVPN < 0 ? -1 : firstVPN * pageSize;
+    }
+    
+    @Override
+    protected boolean detachSegment(int vaddr)
+    {
+    	if(vaddr % pageSize != 0) return false;
+    	
+    	return ((VMKernel)Kernel.kernel).detachSegment(this.processID, vaddr / pageSize);
+    }
+    
+    /**
+     * Returns the map containing a virtual page, or null if the page isn't
+     * part of a memory-mapped file.
+     */
+    private MemoryMap getMemoryMap(int vpn)
+    {
+    	for(MemoryMap map : this._memoryMaps)
+    	{
+    		if(vpn >= map.firstVPN && vpn < map.firstVPN + map.numPages) return map;
+    	}
+    	
+    	return null;
+    }
+    
+    /**
+     * Gives this process its own writable copy of a page shared
+     * copy-on-write, faulting the page in first if necessary.
+     */
+    @Override
+    protected boolean copyOnWrite(int vpn)
+    {
+    	//pages of read-only sections are never writable
+    	if(isReadOnlySectionPage(vpn)) return false;
+    	
+    	VMKernel kernel = (VMKernel) Kernel.kernel;
+    	
+    	boolean intStatus = Machine.interrupt().disable();
+    	
+    	TranslationEntry entry = getTranslation(vpn, true);
+    	
+    	TranslationEntry writable = null;
+    	
+    	if(entry != null)
+    	{
+    		writable = kernel.breakCopyOnWrite(this.processID, entry);
+    		
+    		kernel.setPageNotInUseAndLock(entry.ppn);
+    	}
+    	
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return writable != null;
+    }
+    
+    private boolean isReadOnlySectionPage(int vpn)
+    {
+    	if(coff == null) return false;
+    	
+    	for(int s = 0; s < coff.getNumSections(); s++)
+    	{
+    		CoffSection section = coff.getSection(s);
+    		
+    		int i = vpn - section.getFirstVPN();
+    		
+    		if(i >= 0 && i < section.getLength()) return section.isReadOnly();
+    	}
+    	
+    	return false;
+    }
+    
     /**
      * Handles a TLB Miss
      */
@@ -189,7 +414,8 @@ public class VMProcess extends UserProcess {
     {
     	Machine.interrupt().disable();
     	    	
-    	Lib.debug('t', "Handling TLB Miss, interrupt disabled (PID " + this.processID + ")");
+    	//the message strings are only built when tracing, so a miss does not allocate
+    	if(Lib.test('t')) Lib.debug('t', "Handling TLB Miss, interrupt disabled (PID " + this.processID + ")");
     	
     	Processor processor = Machine.processor();
     	
@@ -197,18 +423,18 @@ public class VMProcess extends UserProcess {
     	
     	int vpn = badVAddr / pageSize;
     	
+    	((VMKernel)Kernel.kernel).getProcessStats(this.processID).numTLBMisses++;
+    	
+    	//pinned translation; faults the page in if it isn't resident
     	TranslationEntry entry = getTranslation(vpn, true);    	
-    	    	
-    	//if there's no entry or if it's invalid, handle page fault
-    	if(entry == null || !entry.valid)
-    	{
-    		entry = handlePageFault(vpn);
-    	}
+    	
+    	//fatal error if entry is null (should exist or be created) TODO: kill process
+    	if(entry == null) Lib.assertNotReached("Entry is null -- pid: " + this.processID + " vpn: " + vpn);
     		
     	//load the translation entry into processor's TLB
     	loadTLBEntry(entry); 			
     	
-    	Lib.debug('t', "Handled TLB Miss, enabling interrupt (PID " + 
+    	if(Lib.test('t')) Lib.debug('t', "Handled TLB Miss, enabling interrupt (PID " + 
     			this.processID + " VPN " + entry.vpn + ")");    	
     	
     	((VMKernel)Kernel.kernel).setPageNotInUseAndLock(entry.ppn);
@@ -222,7 +448,8 @@ public class VMProcess extends UserProcess {
      * 
      * @param pid
      * @param vpn
-     * @return
+     * @return the (unpinned) translation entry for the page, or null
+     * if the page does not exist in main memory or swap
      */
     private TranslationEntry handlePageFault(int vpn)
     {
@@ -232,9 +459,41 @@ public class VMProcess extends UserProcess {
     	
     	VMKernel kernel = (VMKernel) Kernel.kernel;
     	
-    	TranslationEntry entry = kernel.loadPageFromSwap(this.processID, vpn);
+    	kernel.recordPageFault(this.processID, vpn);
+    	
+    	VMStats stats = kernel.getProcessStats(this.processID);
+    	
+    	long startTime = Machine.timer().getTime();
+    	
+    	//the fault is major if it reads the page from disk
+    	int diskReads = stats.numDiskReads();
+    	
+    	TranslationEntry entry;
+    	
+    	MemoryMap map = getMemoryMap(vpn);
+    	
+    	//pages of shared memory segments are shared with the other processes attached
+    	if(vpn >= VMKernel.segmentBaseVPN)
+    	{
+    		entry = kernel.mapSegmentPage(this.processID, vpn);
+    	}
+    	//pages of mapped files are read from the file, and never go to swap
+    	else if(map != null)
+    	{
+    		int fileOffset = (vpn - map.firstVPN) * pageSize;
+    		
+    		entry = kernel.mapFilePage(this.processID, vpn, map.descriptor, 
+    				fileOffset, Math.min(pageSize, map.length - fileOffset));
+    	}
+    	else
+    	{
+    		entry = kernel.loadPageFromSwap(this.processID, vpn);
+    	}
+    	
+    	//code and data pages not yet in swap are loaded from the executable
+    	if(entry == null) entry = loadCoffPage(vpn);
     	
-    	//handle cases where the page does not exist in main mem or swap
+    	//handle cases where the page does not exist in main mem, swap or the executable
     	if(entry == null)
     	{
     		//if stack page and within stack size limit, create new stack page
@@ -243,23 +502,85 @@ public class VMProcess extends UserProcess {
     			entry = kernel.newPage(this.processID, vpn, true, false, false, false);
     			
     			kernel.setPageNotInUseAndLock(entry.ppn);
+    			
+    			stats.numZeroFills++;
     		}    			
     	}    	    	     	 
     	
-    	//fatal error if entry is null (should exist or be created) TODO: kill process
-    	Lib.assertTrue(entry != null, "Entry is null -- pid: " + this.processID + " vpn: " + vpn);    	
+    	if(entry != null) stats.recordPageFault(stats.numDiskReads() != diskReads, 
+    			Machine.timer().getTime() - startTime);
     	    	
-    	Lib.debug('s', "Page fault handled (PID " + this.processID + "VPN " + vpn + ")");
+    	Lib.debug('s', "Page fault " + (entry == null ? "failed" : "handled") + 
+    			" (PID " + this.processID + "VPN " + vpn + ")");
     	
     	return entry;
     }
     
+    /**
+     * Loads a page of one of the executable's sections into a new page of
+     * memory. Pages of uninitialized sections (.bss) are left zero-filled.
+     * 
+     * @return the (unpinned) translation entry for the page, or null if the
+     * page is not part of any section
+     */
+    private TranslationEntry loadCoffPage(int vpn)
+    {
+    	VMKernel kernel = (VMKernel) Kernel.kernel;
+    	
+    	if(coff == null) return null;
+    	
+    	for(int s = 0; s < coff.getNumSections(); s++)
+    	{
+    		CoffSection section = coff.getSection(s);
+    		
+    		int i = vpn - section.getFirstVPN();
+    		
+    		if(i < 0 || i >= section.getLength()) continue;
+    		
+    		//read-only pages are shared with other processes running the program
+    		if(section.isReadOnly())
+    			return kernel.mapSharedPage(this.processID, this.executableName, s, section, i);
+    		
+    		TranslationEntry entry = kernel.newPage(this.processID, vpn, true, 
+    				section.isReadOnly(), false, false);
+    		
+    		VMStats stats = kernel.getProcessStats(this.processID);
+    		
+    		if(section.isInitialzed())
+    		{
+    			section.loadPage(i, entry.ppn);
+    			
+    			stats.numExecutableReads++;
+    		}
+    		else
+    		{
+    			stats.numZeroFills++;
+    		}
+    		
+    		kernel.setPageNotInUseAndLock(entry.ppn);
+    		
+    		return entry;
+    	}
+    	
+    	return null;
+    }
+    
     private boolean isStackPage(int vpn)
     {
     	return (vpn <= (this.getInitialSP() / pageSize) && 
     			vpn >= (this.getInitialSP() / pageSize) - stackPages);
     }
     
+    /**
+     * Loads a translation into the TLB. The slot already holding the page
+     * is reused if there is one, then any invalid slot. Otherwise a slot is
+     * chosen not-recently-used style from the TLB's used and dirty bits,
+     * preferring an unreferenced clean entry, then an unreferenced dirty
+     * entry, then a referenced one; ties go to the first slot after the
+     * last one replaced. The evicted entry's bits are written back to the
+     * kernel's translation first. Once every slot has been referenced, all
+     * the used bits are written back and cleared to start a new period.
+     */
     private void loadTLBEntry(TranslationEntry entry)
     {
     	Lib.assertTrue(Machine.interrupt().disabled());
@@ -268,18 +589,49 @@ public class VMProcess extends UserProcess {
     	
     	Processor processor = Machine.processor();
     	
-    	entry.used = false;
+    	VMKernel kernel = (VMKernel) Kernel.kernel;
     	
-    	for(int i = 0; i < processor.getTLBSize(); i++)
+    	//the page is being referenced right now
+    	entry.used = true;
+    	
+    	int tlbSize = processor.getTLBSize();
+    	
+    	int victim = -1, victimClass = Integer.MAX_VALUE;
+    	
+    	for(int n = 0; n < tlbSize; n++)
     	{
+    		int i = (this._tlbHand + 1 + n) % tlbSize;
+    		
     		TranslationEntry existing = processor.readTLBEntry(i);
     		
-    		//for now, just choose random index of TLB to overwrite
-    		//TODO: add better TLB eviction policy
-        	int randIndex = ThreadLocalRandom.current().nextInt(0, 4);        	
+    		if(!existing.valid || existing.vpn == entry.vpn)
+    		{
+    			victim = i;
+    			
+    			victimClass = -1;
+    			
+    			break;
+    		}
+    		
+    		int tlbClass = (existing.used ? 2 : 0) + (existing.dirty ? 1 : 0);
     		
-    	    Machine.processor().writeTLBEntry(randIndex, entry);
-    	}    	
+    		if(tlbClass < victimClass)
+    		{
+    			victim = i;
+    			
+    			victimClass = tlbClass;
+    		}
+    	}
+    	
+    	//keep the reference and dirty bits of the entry being overwritten
+    	kernel.syncTLBEntry(victim);
+    	
+    	//every entry has been referenced - start a new reference period
+    	if(victimClass >= 2) kernel.syncTLBEntries();
+    	
+    	processor.writeTLBEntry(victim, entry);
+    	
+    	this._tlbHand = victim;
     }
     
     @Override
@@ -288,12 +640,34 @@ public class VMProcess extends UserProcess {
     	return getTranslation(vpn, false);
     }
     
+    /**
+     * Returns the translation for a virtual page. A non-evictable (pinned)
+     * translation is one the caller is about to access, so if the page is not
+     * resident it is faulted in first. The caller must unpin the page when
+     * done with it.
+     */
     @Override
     protected TranslationEntry getTranslation(int vpn, boolean nonEvictable)
     {    	
-    	Lib.debug('s', "VMProcess retrieving translation, nonEvictable = " + nonEvictable);
+    	VMKernel kernel = (VMKernel) Kernel.kernel;
+    	
+    	TranslationEntry entry = kernel.getTranslation(this.processID, vpn, nonEvictable);
     	
-    	return ((VMKernel)Kernel.kernel).getTranslation(this.processID, vpn, nonEvictable);
+    	//the page may be evicted again before it is pinned, so retry until it sticks
+    	while(entry == null && nonEvictable)
+    	{
+    		boolean intStatus = Machine.interrupt().disable();
+    		
+    		TranslationEntry faulted = handlePageFault(vpn);
+    		
+    		Machine.interrupt().restore(intStatus);
+    		
+    		if(faulted == null) return null;
+    		
+    		entry = kernel.getTranslation(this.processID, vpn, true);
+    	}
+    	
+    	return entry;
     }
     
     /**
@@ -311,12 +685,53 @@ public class VMProcess extends UserProcess {
 	case Processor.exceptionTLBMiss:
 		handleTLBMiss();
 		break;
+	case Processor.exceptionReadOnly:
+		//a write to a page shared copy-on-write; retry once it is copied
+		int vpn = processor.readRegister(Processor.regBadVAddr) / pageSize;
+		
+		if(!copyOnWrite(vpn)) super.handleException(cause);
+		break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    //the TLB slot most recently filled by this process
+    private int _tlbHand;
+    
+    //the TLB as it was when this process was last switched out
+    private TranslationEntry[] _shadowTLB;
+    
+    //files mapped into this process's address space by mmap()
+    private LinkedList<MemoryMap> _memoryMaps = new LinkedList<MemoryMap>();
+    
+    /**
+     * A file mapped into a run of virtual pages. Byte i of the map is byte i
+     * of the file.
+     */
+    private class MemoryMap
+    {
+    	//the map's own reference to the file
+    	public FileDescriptor descriptor;
+    	
+    	public int firstVPN, numPages;
+    	
+    	//the number of bytes mapped
+    	public int length;
+    	
+    	public MemoryMap(FileDescriptor descriptor, int firstVPN, int numPages, int length)
+    	{
+    		this.descriptor = descriptor;
+    		
+    		this.firstVPN = firstVPN;
+    		
+    		this.numPages = numPages;
+    		
+    		this.length = length;
+    	}
+    }
+    
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Virtual memory statistics for one process, or totals for every process
+ * that has run. <tt>VMKernel</tt> keeps a statistics object for each
+ * process, prints it when the process exits, and adds it to the totals
+ * printed when the kernel terminates.
+ *
+ * <p>
+ * A major page fault is one that had to read the page from the swap file,
+ * the executable or a memory-mapped file. Every other fault is minor: the page was found in the
+ * swap cache, was already resident as a shared page, or was zero-filled.
+ */
+public class VMStats {
+    /**
+     * Allocate a new statistics object, starting its clock at the current
+     * time.
+     */
+    public VMStats() {
+    	this.startTime = Machine.timer().getTime();
+
+    	this._lastResidentChange = this.startTime;
+    }
+
+    /**
+     * Record that the number of frames charged to the process has changed.
+     *
+     * @param	residentPages	the new resident set size, in pages.
+     */
+    public void setResidentPages(int residentPages) {
+    	long now = Machine.timer().getTime();
+
+    	this.residentPageTicks += (long) this.residentPages * (now - this._lastResidentChange);
+
+    	this._lastResidentChange = now;
+
+    	this.residentPages = residentPages;
+
+    	this.peakResidentPages = Math.max(this.peakResidentPages, residentPages);
+    }
+
+    /**
+     * Record a serviced page fault.
+     *
+     * @param	major	<tt>true</tt> if the page was read from disk.
+     * @param	ticks	the time taken to service the fault.
+     */
+    public void recordPageFault(boolean major, long ticks) {
+    	if(major)
+    		this.numMajorFaults++;
+    	else
+    		this.numMinorFaults++;
+
+    	this.faultTicks += ticks;
+
+    	this.maxFaultTicks = Math.max(this.maxFaultTicks, ticks);
+    }
+
+    /**
+     * Return the number of pages read from disk: from the swap file, the
+     * executable or a memory-mapped file.
+     */
+    public int numDiskReads() {
+    	return this.numSwapReads + this.numExecutableReads + this.numMappedReads;
+    }
+
+    /**
+     * Add the counters of another statistics object to this one. The
+     * resident set history of the other object is closed off at the
+     * current time first.
+     */
+    public void add(VMStats stats) {
+    	stats.setResidentPages(stats.residentPages);
+
+    	this.numTLBMisses += stats.numTLBMisses;
+    	this.numMajorFaults += stats.numMajorFaults;
+    	this.numMinorFaults += stats.numMinorFaults;
+    	this.numZeroFills += stats.numZeroFills;
+    	this.numPagesEvicted += stats.numPagesEvicted;
+    	this.numSwapReads += stats.numSwapReads;
+    	this.numSwapWrites += stats.numSwapWrites;
+    	this.numExecutableReads += stats.numExecutableReads;
+    	this.numMappedReads += stats.numMappedReads;
+    	this.numMappedWrites += stats.numMappedWrites;
+    	this.residentPageTicks += stats.residentPageTicks;
+    	this.faultTicks += stats.faultTicks;
+
+    	this.peakResidentPages = Math.max(this.peakResidentPages, stats.peakResidentPages);
+    	this.maxFaultTicks = Math.max(this.maxFaultTicks, stats.maxFaultTicks);
+    }
+
+    /**
+     * Print out the statistics in this object.
+     *
+     * @param	label	what the statistics are for, such as a PID.
+     */
+    public void print(String label) {
+    	//close off the resident set history so the average is current
+    	setResidentPages(this.residentPages);
+
+    	long elapsed = Math.max(1, Machine.timer().getTime() - this.startTime);
+
+    	int numFaults = this.numMajorFaults + this.numMinorFaults;
+
+	System.out.println("VM (" + label + "): TLB misses " + this.numTLBMisses
+			   + ", page faults " + numFaults
+			   + " (major " + this.numMajorFaults
+			   + ", minor " + this.numMinorFaults
+			   + ", zero-fill " + this.numZeroFills + ")");
+	System.out.println("VM (" + label + "): pages evicted " + this.numPagesEvicted
+			   + ", swap reads " + this.numSwapReads
+			   + ", swap writes " + this.numSwapWrites
+			   + ", executable reads " + this.numExecutableReads
+			   + ", mapped file reads " + this.numMappedReads
+			   + ", writes " + this.numMappedWrites);
+	System.out.println("VM (" + label + "): resident pages average "
+			   + (this.residentPageTicks / elapsed)
+			   + ", peak " + this.peakResidentPages
+			   + "; fault service ticks average "
+			   + (numFaults == 0 ? 0 : this.faultTicks / numFaults)
+			   + ", max " + this.maxFaultTicks);
+    }
+
+    /** The time the statistics started being kept. */
+    public final long startTime;
+
+    /** The number of TLB misses taken by the process. */
+    public int numTLBMisses = 0;
+    /** The number of page faults that read the page from disk. */
+    public int numMajorFaults = 0;
+    /** The number of page faults serviced without reading from disk. */
+    public int numMinorFaults = 0;
+    /** The number of page faults serviced with a zero-filled page. */
+    public int numZeroFills = 0;
+    /** The number of the process's pages evicted from memory. */
+    public int numPagesEvicted = 0;
+    /** The number of reads from the swap file, each of one or more pages. */
+    public int numSwapReads = 0;
+    /** The number of pages written to the swap file. */
+    public int numSwapWrites = 0;
+    /** The number of pages read from the executable. */
+    public int numExecutableReads = 0;
+    /** The number of pages read from memory-mapped files. */
+    public int numMappedReads = 0;
+    /** The number of pages written back to memory-mapped files. */
+    public int numMappedWrites = 0;
+
+    /** The number of frames currently charged to the process. */
+    public int residentPages = 0;
+    /** The largest number of frames charged to the process at once. */
+    public int peakResidentPages = 0;
+    /** The resident set size integrated over time, in page-ticks. */
+    public long residentPageTicks = 0;
+
+    /** The total time spent servicing page faults. */
+    public long faultTicks = 0;
+    /** The longest time spent servicing a single page fault. */
+    public long maxFaultTicks = 0;
+
+    //the time residentPages last changed
+    private long _lastResidentChange;
+}
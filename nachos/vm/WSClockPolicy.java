@@ -0,0 +1,99 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock page replacement policy. Like the clock policy, a hand sweeps
+ * the frames and clears used bits, but each frame also records the time
+ * (in simulated ticks) of the last sweep that saw it referenced. A page that
+ * has not been referenced within the working set window is outside its
+ * process's working set; the first such clean page is evicted.
+ *
+ * <p>
+ * Writes are synchronous here, so old dirty pages are not scheduled for
+ * cleaning as in the original algorithm. If the sweep finds no old clean
+ * page, the first old dirty page is evicted, and failing that, the least
+ * recently referenced evictable page.
+ *
+ * <p>
+ * The window is set with the <tt>VMKernel.workingSetWindow</tt> key in
+ * nachos.conf.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+
+	private VMKernel _kernel;
+
+	private int _numPhysPages;
+
+	//the frame the clock hand last stopped at
+	private int _hand;
+
+	//the time each frame was last seen referenced
+	private long[] _lastUse;
+
+	//pages unreferenced for longer than this many ticks are outside the working set
+	private long _window;
+
+	/** The working set window used if none is configured, in ticks. */
+	public static final int defaultWindow = 10000;
+
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(VMKernel kernel, int numPhysPages) {
+    	this._kernel = kernel;
+
+    	this._numPhysPages = numPhysPages;
+
+    	this._lastUse = new long[numPhysPages];
+
+    	this._window = Config.getInteger("VMKernel.workingSetWindow", defaultWindow);
+    }
+
+    public void pageLoaded(int ppn, boolean referenced) {
+    	long now = Machine.timer().getTime();
+
+    	//a page read in with its neighbour starts outside the working set
+    	this._lastUse[ppn] = referenced ? now : now - this._window - 1;
+    }
+
+    public void pageRemoved(int ppn) {
+    }
+
+    public int selectVictim() {
+    	long now = Machine.timer().getTime();
+
+    	//first old dirty page, and least recently used page, seen by the sweep
+    	int oldDirty = -1, leastRecent = -1;
+
+    	for(int i = 0; i < this._numPhysPages; i++)
+    	{
+    		this._hand = (this._hand + 1) % this._numPhysPages;
+
+    		if(!this._kernel.isEvictable(this._hand)) continue;
+
+    		TranslationEntry entry = this._kernel.getFrameTranslation(this._hand);
+
+    		if(entry.used)
+    		{
+    			entry.used = false;
+
+    			this._lastUse[this._hand] = now;
+    		}
+    		else if(now - this._lastUse[this._hand] > this._window)
+    		{
+    			if(!entry.dirty) return this._hand;
+
+    			if(oldDirty < 0) oldDirty = this._hand;
+    		}
+
+    		if(leastRecent < 0 || this._lastUse[this._hand] < this._lastUse[leastRecent])
+    			leastRecent = this._hand;
+    	}
+
+    	return oldDirty >= 0 ? oldDirty : leastRecent;
+    }
+}